@@ -0,0 +1,36 @@
+package ca.lavers.joa.middleware.benchmarks;
+
+import ca.lavers.joa.core.Context;
+import ca.lavers.joa.core.Middleware;
+import ca.lavers.joa.core.MiddlewareChain;
+
+/**
+ * Shared helpers for the routing benchmarks
+ */
+class Bench {
+
+    // Marks the request as handled
+    static final Middleware HANDLER = (ctx, next) -> ctx.response().status(200);
+
+    // Runs if the router under test falls through
+    static final Middleware NOT_FOUND = (ctx, next) -> ctx.response().status(404);
+
+    // Handler that passes the request along, for exercising fallthrough
+    static final Middleware PASS = (ctx, next) -> next.run();
+
+    /**
+     * Wraps the middleware under test so that a fallthrough is observable
+     */
+    static MiddlewareChain chain(Middleware router) {
+        return new MiddlewareChain(router, NOT_FOUND);
+    }
+
+    /**
+     * Runs one request through the chain, returning the resulting status
+     */
+    static int run(MiddlewareChain chain, BenchRequest request) {
+        Context ctx = new Context(request, new BenchResponse());
+        chain.call(ctx);
+        return ctx.response().status();
+    }
+}
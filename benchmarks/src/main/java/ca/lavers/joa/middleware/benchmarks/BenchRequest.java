@@ -0,0 +1,65 @@
+package ca.lavers.joa.middleware.benchmarks;
+
+import ca.lavers.joa.core.AbstractRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Minimal request with a fixed method and path, so that benchmarks measure
+ * the middleware rather than request construction
+ */
+class BenchRequest extends AbstractRequest {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final String method;
+    private final String path;
+
+    BenchRequest(String method, String path) {
+        this.method = method;
+        this.path = path;
+    }
+
+    @Override
+    public String path() {
+        return path;
+    }
+
+    @Override
+    public String method() {
+        return method;
+    }
+
+    @Override
+    public Map<String, String> queryParams() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public String rawQuery() {
+        return "";
+    }
+
+    @Override
+    public Map<String, String> headers() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public String header(String name) {
+        return null;
+    }
+
+    @Override
+    public String remoteIp() {
+        return "127.0.0.1";
+    }
+
+    @Override
+    public InputStream body() {
+        return new ByteArrayInputStream(EMPTY);
+    }
+}
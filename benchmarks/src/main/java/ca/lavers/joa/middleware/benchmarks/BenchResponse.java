@@ -0,0 +1,6 @@
+package ca.lavers.joa.middleware.benchmarks;
+
+import ca.lavers.joa.core.AbstractResponse;
+
+class BenchResponse extends AbstractResponse {
+}
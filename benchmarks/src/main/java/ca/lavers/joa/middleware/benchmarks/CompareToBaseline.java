@@ -0,0 +1,105 @@
+package ca.lavers.joa.middleware.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares a JMH JSON result file against a baseline and exits with a non-zero
+ * status if any benchmark regressed by more than the allowed tolerance.
+ *
+ * A benchmark regresses if its throughput drops, or (when both runs were made
+ * with {@code -prof gc}) if the bytes it allocates per operation grow.
+ *
+ * Usage:
+ *   java -cp target/benchmarks.jar ca.lavers.joa.middleware.benchmarks.CompareToBaseline \
+ *       baseline.json results.json [tolerancePercent]
+ */
+public class CompareToBaseline {
+
+    private static final String ALLOC_METRIC = "gc.alloc.rate.norm";
+
+    // Allocation changes smaller than this are noise, whatever the percentage
+    private static final double ALLOC_SLACK_BYTES = 8;
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2) {
+            System.err.println("Usage: CompareToBaseline <baseline.json> <results.json> [tolerancePercent]");
+            System.exit(2);
+        }
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) / 100 : 0.10;
+
+        Map<String, JsonNode> baseline = load(new File(args[0]));
+        Map<String, JsonNode> results = load(new File(args[1]));
+
+        int regressions = 0;
+        for(Map.Entry<String, JsonNode> entry : results.entrySet()) {
+            JsonNode base = baseline.get(entry.getKey());
+            if(base == null) {
+                System.out.println("NEW       " + entry.getKey());
+                continue;
+            }
+            JsonNode current = entry.getValue();
+
+            double baseScore = base.path("primaryMetric").path("score").asDouble();
+            double score = current.path("primaryMetric").path("score").asDouble();
+            double change = (score - baseScore) / baseScore;
+            boolean regressed = change < -tolerance;
+
+            String detail = String.format("%s: %.0f -> %.0f ops/s (%+.1f%%)",
+                    entry.getKey(), baseScore, score, change * 100);
+
+            Double baseAlloc = alloc(base);
+            Double curAlloc = alloc(current);
+            if(baseAlloc != null && curAlloc != null) {
+                detail += String.format(", %.0f -> %.0f B/op", baseAlloc, curAlloc);
+                if(curAlloc > baseAlloc * (1 + tolerance) + ALLOC_SLACK_BYTES) {
+                    regressed = true;
+                }
+            }
+
+            if(regressed) {
+                regressions++;
+            }
+            System.out.println((regressed ? "REGRESSED " : "OK        ") + detail);
+        }
+
+        if(regressions > 0) {
+            System.out.println(regressions + " benchmark(s) regressed by more than " + Math.round(tolerance * 100) + "%");
+            System.exit(1);
+        }
+    }
+
+    // Benchmark name plus its parameters -> result
+    private static Map<String, JsonNode> load(File file) throws IOException {
+        Map<String, JsonNode> results = new LinkedHashMap<>();
+        for(JsonNode result : new ObjectMapper().readTree(file)) {
+            Map<String, String> params = new TreeMap<>();
+            Iterator<Map.Entry<String, JsonNode>> fields = result.path("params").fields();
+            while(fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                params.put(field.getKey(), field.getValue().asText());
+            }
+            String name = result.path("benchmark").asText();
+            results.put(params.isEmpty() ? name : name + params, result);
+        }
+        return results;
+    }
+
+    private static Double alloc(JsonNode result) {
+        Iterator<Map.Entry<String, JsonNode>> metrics = result.path("secondaryMetrics").fields();
+        while(metrics.hasNext()) {
+            Map.Entry<String, JsonNode> metric = metrics.next();
+            if(metric.getKey().endsWith(ALLOC_METRIC)) {
+                return metric.getValue().path("score").asDouble();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,93 @@
+package ca.lavers.joa.middleware.benchmarks;
+
+import ca.lavers.joa.core.Middleware;
+import ca.lavers.joa.core.MiddlewareChain;
+import ca.lavers.joa.middleware.prefixrouter.PrefixRouter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link PrefixRouter} lookups against prefix tables of various sizes,
+ * with and without fallthrough enabled.
+ *
+ * Every handler except the last passes the request on, so with fallthrough
+ * enabled the fallthrough benchmark walks through the final few prefixes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PrefixRouterBenchmark {
+
+    private static final int NESTING_DEPTH = 4;
+    private static final int FALLTHROUGH_STEPS = 3;
+
+    @Param({"10", "100", "1000"})
+    public int routes;
+
+    @Param({"false", "true"})
+    public boolean fallthrough;
+
+    private MiddlewareChain flat;
+    private MiddlewareChain nested;
+
+    private BenchRequest hit;
+    private BenchRequest fallthroughHit;
+    private BenchRequest miss;
+    private BenchRequest nestedHit;
+
+    @Setup
+    public void setup() {
+        flat = Bench.chain(prefixTable(routes));
+
+        PrefixRouter inner = prefixTable(routes);
+        StringBuilder nestedPath = new StringBuilder();
+        for(int i=NESTING_DEPTH; i>0; i--) {
+            PrefixRouter outer = prefixTable(routes);
+            outer.prefix("/level" + i, inner);
+            inner = outer;
+            nestedPath.insert(0, "/level" + i);
+        }
+        nested = Bench.chain(inner);
+
+        hit = new BenchRequest("GET", "/prefix" + (routes - 1) + "/some/file.txt");
+        fallthroughHit = new BenchRequest("GET", "/prefix" + (routes - 1 - FALLTHROUGH_STEPS) + "/some/file.txt");
+        miss = new BenchRequest("GET", "/nothing/here");
+        nestedHit = new BenchRequest("GET", nestedPath + "/prefix" + (routes - 1) + "/some/file.txt");
+    }
+
+    private PrefixRouter prefixTable(int size) {
+        PrefixRouter router = new PrefixRouter();
+        if(fallthrough) {
+            router.withFallthrough();
+        }
+        for(int i=0; i<size; i++) {
+            Middleware handler = (i == size - 1) ? Bench.HANDLER : Bench.PASS;
+            router.prefix("/prefix" + i, handler);
+        }
+        return router;
+    }
+
+    @Benchmark
+    public int hit() {
+        return Bench.run(flat, hit);
+    }
+
+    @Benchmark
+    public int fallthroughHit() {
+        return Bench.run(flat, fallthroughHit);
+    }
+
+    @Benchmark
+    public int miss() {
+        return Bench.run(flat, miss);
+    }
+
+    @Benchmark
+    public int nestedHit() {
+        return Bench.run(nested, nestedHit);
+    }
+}
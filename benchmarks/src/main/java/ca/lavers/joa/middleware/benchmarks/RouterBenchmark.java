@@ -0,0 +1,87 @@
+package ca.lavers.joa.middleware.benchmarks;
+
+import ca.lavers.joa.core.MiddlewareChain;
+import ca.lavers.joa.middleware.router.Router;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Router} lookups against route tables of various sizes.
+ *
+ * Half of the routes are literal and half are parameterized with three path
+ * parameters each; requests target the last-defined routes, which is the
+ * worst case for a linear search.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RouterBenchmark {
+
+    private static final int NESTING_DEPTH = 4;
+
+    @Param({"10", "100", "1000"})
+    public int routes;
+
+    private MiddlewareChain flat;
+    private MiddlewareChain nested;
+
+    private BenchRequest literalHit;
+    private BenchRequest paramHit;
+    private BenchRequest miss;
+    private BenchRequest nestedHit;
+
+    @Setup
+    public void setup() {
+        flat = Bench.chain(routeTable(routes));
+
+        // Each level mounts the next beneath its own route table
+        Router inner = routeTable(routes);
+        StringBuilder nestedPath = new StringBuilder();
+        for(int i=NESTING_DEPTH; i>0; i--) {
+            Router outer = routeTable(routes);
+            outer.mount("/level" + i, inner);
+            inner = outer;
+            nestedPath.insert(0, "/level" + i);
+        }
+        nested = Bench.chain(inner);
+
+        int last = routes / 2 - 1;
+        literalHit = new BenchRequest("GET", "/literal" + last + "/list");
+        paramHit = new BenchRequest("GET", "/param" + last + "/alice/posts/37/comments/4");
+        miss = new BenchRequest("GET", "/nothing/here");
+        nestedHit = new BenchRequest("GET", nestedPath + "/literal" + last + "/list");
+    }
+
+    static Router routeTable(int size) {
+        Router router = new Router();
+        for(int i=0; i<size/2; i++) {
+            router.get("/literal" + i + "/list", Bench.HANDLER);
+            router.get("/param" + i + "/:user/posts/:post/comments/:comment", Bench.HANDLER);
+        }
+        return router;
+    }
+
+    @Benchmark
+    public int literalHit() {
+        return Bench.run(flat, literalHit);
+    }
+
+    @Benchmark
+    public int paramHit() {
+        return Bench.run(flat, paramHit);
+    }
+
+    @Benchmark
+    public int miss() {
+        return Bench.run(flat, miss);
+    }
+
+    @Benchmark
+    public int nestedMountHit() {
+        return Bench.run(nested, nestedHit);
+    }
+}
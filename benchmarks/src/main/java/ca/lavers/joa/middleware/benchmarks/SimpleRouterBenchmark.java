@@ -0,0 +1,56 @@
+package ca.lavers.joa.middleware.benchmarks;
+
+import ca.lavers.joa.core.MiddlewareChain;
+import ca.lavers.joa.middleware.SimpleRouter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link SimpleRouter} lookups against route tables of various sizes,
+ * with and without the routes frozen into a perfect hash table.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SimpleRouterBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int routes;
+
+    @Param({"false", "true"})
+    public boolean frozen;
+
+    private MiddlewareChain chain;
+
+    private BenchRequest hit;
+    private BenchRequest miss;
+
+    @Setup
+    public void setup() {
+        SimpleRouter router = new SimpleRouter();
+        for(int i=0; i<routes; i++) {
+            router.get("/health/check" + i, Bench.HANDLER);
+        }
+        if(frozen) {
+            router.freeze();
+        }
+        chain = Bench.chain(router);
+
+        hit = new BenchRequest("GET", "/health/check" + (routes - 1));
+        miss = new BenchRequest("GET", "/health/nothing");
+    }
+
+    @Benchmark
+    public int hit() {
+        return Bench.run(chain, hit);
+    }
+
+    @Benchmark
+    public int miss() {
+        return Bench.run(chain, miss);
+    }
+}
@@ -5,10 +5,25 @@ import ca.lavers.joa.core.Middleware;
 import ca.lavers.joa.core.NextMiddleware;
 import ca.lavers.joa.core.errors.HttpException;
 import ca.lavers.joa.core.errors.TooManyRequestsException;
+import ca.lavers.joa.middleware.errors.ForbiddenException;
+import ca.lavers.joa.middleware.util.ExpiringCollection;
 import ca.lavers.joa.middleware.util.ExpiringSet;
+import ca.lavers.joa.middleware.util.IpRangeSet;
 import ca.lavers.joa.middleware.util.SlidingWindowCache;
+import ca.lavers.joa.middleware.util.SnapshotFile;
+import ca.lavers.joa.middleware.util.Snapshottable;
+import ca.lavers.joa.middleware.util.WindowCounter;
 
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * The Bouncer rejects requests from clients that seem to be trying to cause trouble.
@@ -19,15 +34,60 @@ import java.time.Duration;
  * (i.e. any request made by a naughty IP will reset the duration of their stay on the list).
  *
  * A "failed request" means any request that results in a 4xx HTTP status code.
+ *
+ * To track very large numbers of clients, the failure counts and naughty list can be kept
+ * in tables specialized for IP addresses, optionally outside the Java heap:
+ *
+ * new Bouncer(new IpWindowCounter(60, 12, true), 20, new IpExpiringSet(600, true));
+ *
+ * Or, to keep the memory used for counting failures fixed no matter how many clients there
+ * are (e.g. during a scan spread over a whole botnet), count them approximately with a
+ * {@link ca.lavers.joa.middleware.util.CountMinWindowCounter}. Approximate counts are never too
+ * low, but may be too high, so an IP may occasionally be added to the naughty list a few
+ * failures early (see that class for the bounds). Only IPs that cross the limit are added
+ * to the naughty list, which is still exact.
+ *
+ * new Bouncer(CountMinWindowCounter.withErrorBounds(60, 12, 0.0001, 0.001), 20, Duration.ofMinutes(10));
+ *
+ * Clients can also be allowed or blocked outright by IP range, in CIDR notation:
+ *
+ * bouncer.withAllowList(IpRangeSet.of("203.0.113.0/24", "2001:db8::/32"))
+ *        .withBlockList(IpRangeSet.of(cloudRanges));
+ *
+ * Requests from allowed clients are never counted as failures, and they are never added
+ * to the naughty list. Requests from blocked clients are rejected with a
+ * {@link ForbiddenException} (403) without being passed on. An allowed client is never
+ * blocked, even if it's also in the block list. Either list can be replaced at any time,
+ * e.g. when reloaded from a file; requests already in progress see either the old list or
+ * the new one.
+ *
+ * So that restarting the server doesn't give every client a clean slate, the naughty list
+ * and failure counts can be saved to a file periodically, and loaded from it on startup:
+ *
+ * new Bouncer(Duration.ofMinutes(1), 20, Duration.ofMinutes(10))
+ *     .withSnapshots(Paths.get("/var/lib/myapp/bouncer.snapshot"), Duration.ofSeconds(30),
+ *                    e -> log.warn("Bouncer snapshot failed", e));
+ *
+ * and, on shutdown, saved one last time with {@code bouncer.stopSnapshots()}.
+ *
+ * Only the default collections, {@link SlidingWindowCache} and {@link ExpiringSet}, (or
+ * any other {@link Snapshottable} ones) are saved.
  */
 public class Bouncer implements Middleware {
 
-    private final SlidingWindowCache<String> fails;
+    private final WindowCounter<String> fails;
     private final int maxFails;
 
-    private final ExpiringSet<String> naughtyList;
+    private final ExpiringCollection<String> naughtyList;
+
+    private volatile IpRangeSet allowList = IpRangeSet.empty();
+    private volatile IpRangeSet blockList = IpRangeSet.empty();
 
-    // TODO - Whitelist; some way of removing an IP from the naughty list
+    private SnapshotFile snapshotFile;
+    private ScheduledFuture<?> snapshotTask;
+    private Consumer<Exception> snapshotErrors;
+
+    // TODO - Some way of removing an IP from the naughty list
     // TODO - Logging, or a callback for when a client gets added to the list
 
     /**
@@ -55,16 +115,152 @@ public class Bouncer implements Middleware {
      *                           IP before that IP will be removed from the list
      */
     public Bouncer(long windowSeconds, int maxFailsPerWindow, long naughtyTimeSeconds) {
-        this.fails = new SlidingWindowCache<>(windowSeconds);
+        this(new SlidingWindowCache<>(windowSeconds), maxFailsPerWindow, naughtyTimeSeconds);
+    }
+
+    /**
+     * {@link #Bouncer(Duration, int, Duration)}, counting failed requests with the given
+     * counter, e.g. a {@link ca.lavers.joa.middleware.util.BucketedWindowCounter} for a
+     * busy server. The counter's window is the window of time requests are remembered.
+     *
+     * @param failures Counts each IP's failed requests
+     * @param maxFailsPerWindow The maximum number of failed requests an IP is allowed to make
+     *                          without being added to the naughty list
+     * @param naughtyTime The amount of time that must elapse without a request from a naughty
+     *                    IP before that IP will be removed from the list
+     */
+    public Bouncer(WindowCounter<String> failures, int maxFailsPerWindow, Duration naughtyTime) {
+        this(failures, maxFailsPerWindow, naughtyTime.toSeconds());
+    }
+
+    private Bouncer(WindowCounter<String> failures, int maxFailsPerWindow, long naughtyTimeSeconds) {
+        this(failures, maxFailsPerWindow, new ExpiringSet<>(naughtyTimeSeconds));
+    }
+
+    /**
+     * {@link #Bouncer(Duration, int, Duration)}, with the given counter and naughty list,
+     * e.g. an {@link ca.lavers.joa.middleware.util.IpWindowCounter} and
+     * {@link ca.lavers.joa.middleware.util.IpExpiringSet} for large numbers of clients.
+     * The naughty list's expiry time is the time a naughty IP must stay away for.
+     *
+     * @param failures Counts each IP's failed requests
+     * @param maxFailsPerWindow The maximum number of failed requests an IP is allowed to make
+     *                          without being added to the naughty list
+     * @param naughtyList Holds the IPs currently being rejected
+     */
+    public Bouncer(WindowCounter<String> failures, int maxFailsPerWindow, ExpiringCollection<String> naughtyList) {
+        this.fails = failures;
         this.maxFails = maxFailsPerWindow;
-        this.naughtyList = new ExpiringSet<>(naughtyTimeSeconds);
+        this.naughtyList = naughtyList;
+    }
+
+    /**
+     * Replaces the ranges of IPs that are never counted as failing or added to the naughty list
+     */
+    public Bouncer withAllowList(IpRangeSet ranges) {
+        this.allowList = ranges;
+        return this;
+    }
+
+    /**
+     * Replaces the ranges of IPs whose requests are always rejected
+     */
+    public Bouncer withBlockList(IpRangeSet ranges) {
+        this.blockList = ranges;
+        return this;
+    }
+
+    /**
+     * Loads the state saved in the given file, if there is one, and from then on saves
+     * it there at the given interval. Anything that has expired since it was saved isn't
+     * loaded. If the file can't be loaded (e.g. it's corrupt), the Bouncer starts out
+     * with whatever could be loaded from it, and replaces it when next saving.
+     *
+     * Errors loading or saving the file are passed to onError, e.g. to be logged; there's no
+     * default, as the Bouncer can't know where the application's errors should go. A failed
+     * save is tried again at the next interval.
+     *
+     * Should be called before the Bouncer handles any requests. Call {@link #stopSnapshots()}
+     * when done with the Bouncer, to save it one last time.
+     */
+    public synchronized Bouncer withSnapshots(Path file, Duration interval, Consumer<Exception> onError) {
+        if(snapshotTask != null) {
+            snapshotTask.cancel(false);
+        }
+        snapshotFile = new SnapshotFile(file);
+        snapshotErrors = onError;
+        try {
+            snapshotFile.load(snapshotSections());
+        }
+        catch (IOException | RuntimeException e) {
+            // Start out with what was loaded, if anything
+            onError.accept(e);
+        }
+        long millis = interval.toMillis();
+        SnapshotSaver saver = new SnapshotSaver(this);
+        snapshotTask = Timer.INSTANCE.scheduleWithFixedDelay(saver, millis, millis, TimeUnit.MILLISECONDS);
+        saver.task = snapshotTask;
+        return this;
+    }
+
+    /**
+     * Stops saving snapshots at intervals, after saving one last time, e.g. on shutdown
+     *
+     * @throws IllegalStateException if no snapshot file was set with {@link #withSnapshots(Path, Duration, Consumer)}
+     */
+    public void stopSnapshots() throws IOException {
+        synchronized(this) {
+            if(snapshotTask != null) {
+                snapshotTask.cancel(false);
+                snapshotTask = null;
+            }
+        }
+        saveSnapshot();
+    }
+
+    /**
+     * Saves the state to the snapshot file now
+     *
+     * @throws IllegalStateException if no snapshot file was set with {@link #withSnapshots(Path, Duration, Consumer)}
+     */
+    public void saveSnapshot() throws IOException {
+        SnapshotFile file;
+        synchronized(this) {
+            file = snapshotFile;
+        }
+        if(file == null) {
+            throw new IllegalStateException("No snapshot file has been set");
+        }
+        file.save(snapshotSections());
+    }
+
+    synchronized boolean isSavingSnapshots() {
+        return snapshotTask != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Snapshottable<String>> snapshotSections() {
+        Map<String, Snapshottable<String>> sections = new LinkedHashMap<>();
+        if(fails instanceof Snapshottable) {
+            sections.put("fails", (Snapshottable<String>) fails);
+        }
+        if(naughtyList instanceof Snapshottable) {
+            sections.put("naughty", (Snapshottable<String>) naughtyList);
+        }
+        return sections;
     }
 
     @Override
     public void call(final Context ctx, final NextMiddleware next) {
         final String ip = ctx.request().remoteIp();
 
-        if(naughtyList.contains(ip)) {
+        if(allowList.contains(ip)) {
+            next.run();
+        }
+        else if(blockList.contains(ip)) {
+            throw new ForbiddenException();
+        }
+        else if(naughtyList.contains(ip)) {
             naughtyList.add(ip); // Resets the expiry -- if they keep making requests, they stay blocked
             throw new TooManyRequestsException();
         }
@@ -87,5 +283,57 @@ public class Bouncer implements Middleware {
             }
         }
     }
-}
 
+    // Saves a Bouncer's snapshot each time it's run. Only holds the Bouncer weakly, so
+    // that one dropped without stopping its snapshots can still be collected.
+    private static class SnapshotSaver implements Runnable {
+        private final WeakReference<Bouncer> bouncer;
+        volatile ScheduledFuture<?> task;
+
+        SnapshotSaver(Bouncer bouncer) {
+            this.bouncer = new WeakReference<>(bouncer);
+        }
+
+        @Override
+        public void run() {
+            Bouncer b = bouncer.get();
+            if(b == null) {
+                ScheduledFuture<?> task = this.task;
+                if(task != null) {
+                    task.cancel(false);
+                }
+                return;
+            }
+            try {
+                b.saveSnapshot();
+            }
+            catch (IOException | RuntimeException e) {
+                // Tried again next time
+                b.reportSnapshotError(e);
+            }
+        }
+    }
+
+    private void reportSnapshotError(Exception e) {
+        Consumer<Exception> onError;
+        synchronized(this) {
+            onError = snapshotErrors;
+        }
+        onError.accept(e);
+    }
+
+    // Saves snapshots; created on first use
+    private static class Timer {
+        static final ScheduledThreadPoolExecutor INSTANCE = create();
+
+        private static ScheduledThreadPoolExecutor create() {
+            ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "bouncer-snapshots");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.setRemoveOnCancelPolicy(true);
+            return timer;
+        }
+    }
+}
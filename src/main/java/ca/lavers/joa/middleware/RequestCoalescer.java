@@ -0,0 +1,232 @@
+package ca.lavers.joa.middleware;
+
+import ca.lavers.joa.core.*;
+import ca.lavers.joa.middleware.util.HttpMethods;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Collapses concurrent identical GET and HEAD requests into one trip down the chain
+ *
+ * The first request for a given key becomes the leader, and is passed on to the
+ * following middleware as usual. Any request with the same key that arrives while the
+ * leader is still in progress waits for it instead, and is then sent a copy of the
+ * leader's status, headers and body. This keeps a burst of requests for the same
+ * resource (e.g. just after it has dropped out of a cache) from all hitting the backend.
+ *
+ * By default the key is the method, path and query string. Headers that change the
+ * response (e.g. Authorization, Accept-Encoding) must be added to the key with
+ * {@link #withKeyHeader(String)}, or a different key can be supplied entirely with
+ * {@link #withKey(Function)}. Requests with other methods are always passed straight on.
+ *
+ * A waiting request gives up and goes down the chain itself if the leader takes longer
+ * than the max wait, fails with an exception, or produces a body larger than the max
+ * buffered size (the leader's body has to be held in memory in order to copy it).
+ *
+ * Ex.
+ *
+ * server.use(new RequestCoalescer().withKeyHeader("Authorization"));
+ */
+public class RequestCoalescer implements Middleware {
+
+    private final Map<String, Flight> inFlight = new ConcurrentHashMap<>();
+
+    private final List<String> keyHeaders = new ArrayList<>();
+    private Function<Request, String> keyFunction;
+
+    private long maxWaitNanos = TimeUnit.SECONDS.toNanos(10);
+    private int maxBufferedSize = 1024 * 1024;
+
+    /**
+     * Include the value of the given request header in the key, so that only requests
+     * with the same value for it are coalesced
+     */
+    public RequestCoalescer withKeyHeader(String name) {
+        this.keyHeaders.add(name);
+        return this;
+    }
+
+    /**
+     * Use the given function to compute the key for each request instead of the default.
+     * Only GET and HEAD requests are ever coalesced regardless.
+     */
+    public RequestCoalescer withKey(Function<Request, String> keyFunction) {
+        this.keyFunction = keyFunction;
+        return this;
+    }
+
+    /**
+     * The longest a request will wait for a leader to finish before going down the chain
+     * itself. Defaults to 10 seconds.
+     */
+    public RequestCoalescer withMaxWait(Duration maxWait) {
+        this.maxWaitNanos = maxWait.toNanos();
+        return this;
+    }
+
+    /**
+     * The largest response body, in bytes, that will be buffered to share with waiting
+     * requests. Defaults to 1MB.
+     */
+    public RequestCoalescer withMaxBufferedSize(int maxBufferedSize) {
+        this.maxBufferedSize = maxBufferedSize;
+        return this;
+    }
+
+    @Override
+    public void call(Context ctx, NextMiddleware next) {
+        final Request req = ctx.request();
+        final int method = HttpMethods.slot(req.method());
+        if(method != HttpMethods.GET && method != HttpMethods.HEAD) {
+            next.run();
+            return;
+        }
+
+        final String key = (keyFunction != null) ? keyFunction.apply(req) : defaultKey(req);
+        final Flight flight = new Flight();
+        final Flight leader = inFlight.putIfAbsent(key, flight);
+        if(leader == null) {
+            lead(key, flight, ctx, next);
+            return;
+        }
+
+        CapturedResponse shared = leader.await(maxWaitNanos);
+        if(shared != null) {
+            shared.copyTo(ctx.response());
+        }
+        else {
+            next.run();
+        }
+    }
+
+    private void lead(String key, Flight flight, Context ctx, NextMiddleware next) {
+        CapturedResponse captured = new CapturedResponse();
+        boolean shareable = false;
+        try {
+            next.runWithAlternateContext(ctx.withAlternateResponse(captured));
+            shareable = captured.buffer(maxBufferedSize);
+            captured.copyTo(ctx.response());
+        }
+        finally {
+            // Requests arriving from here on start a new flight
+            inFlight.remove(key, flight);
+            flight.finish(shareable ? captured : null);
+        }
+    }
+
+    private String defaultKey(Request req) {
+        StringBuilder key = new StringBuilder();
+        key.append(req.method()).append(' ').append(req.path());
+        String query = req.rawQuery();
+        if(query != null && !query.isEmpty()) {
+            key.append('?').append(query);
+        }
+        for(String name : keyHeaders) {
+            String value = req.header(name);
+            key.append('\n');
+            if(value != null) {
+                key.append(value);
+            }
+        }
+        return key.toString();
+    }
+
+    // One leader's request, which others can wait on
+    private static class Flight {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile CapturedResponse response;
+
+        void finish(CapturedResponse response) {
+            this.response = response;
+            done.countDown();
+        }
+
+        // The leader's response, or null if it can't be shared or didn't come in time
+        CapturedResponse await(long nanos) {
+            try {
+                if(!done.await(nanos, TimeUnit.NANOSECONDS)) {
+                    return null;
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            return response;
+        }
+    }
+
+    // Records everything set on it, so it can be copied to any number of other responses
+    private static class CapturedResponse extends AbstractResponse {
+        // (name, value) pairs in the order they were set
+        private final List<String> headerPairs = new ArrayList<>();
+        private long bodySize = -1;
+        private byte[] buffered;
+
+        @Override
+        public void header(String name, String value) {
+            super.header(name, value);
+            headerPairs.add(name);
+            headerPairs.add(value);
+        }
+
+        @Override
+        public void bodySize(long bodySize) {
+            super.bodySize(bodySize);
+            this.bodySize = bodySize;
+        }
+
+        // Reads the body into memory, unless it's larger than maxSize. Returns
+        // true if it was, in which case the response can be copied any number
+        // of times; otherwise only once.
+        boolean buffer(int maxSize) {
+            if(body == null) {
+                buffered = new byte[0];
+                return true;
+            }
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] chunk = new byte[8192];
+                int n;
+                while((n = body.read(chunk, 0, Math.min(chunk.length, maxSize + 1 - out.size()))) > 0) {
+                    out.write(chunk, 0, n);
+                    if(out.size() > maxSize) {
+                        // Too big to share; put back what was read in front of the rest
+                        body = new SequenceInputStream(new ByteArrayInputStream(out.toByteArray()), body);
+                        return false;
+                    }
+                }
+                buffered = out.toByteArray();
+                return true;
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void copyTo(Response response) {
+            InputStream copy = (buffered != null) ? new ByteArrayInputStream(buffered) : body;
+            response.body(copy);
+            response.status(status());
+            for(int i=0; i<headerPairs.size(); i+=2) {
+                response.header(headerPairs.get(i), headerPairs.get(i + 1));
+            }
+            if(bodySize >= 0) {
+                response.bodySize(bodySize);
+            }
+        }
+    }
+}
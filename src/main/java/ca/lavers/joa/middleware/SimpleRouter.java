@@ -4,6 +4,8 @@ import ca.lavers.joa.core.Context;
 import ca.lavers.joa.core.Middleware;
 import ca.lavers.joa.core.MiddlewareChain;
 import ca.lavers.joa.core.NextMiddleware;
+import ca.lavers.joa.middleware.util.HttpMethods;
+import ca.lavers.joa.middleware.util.PerfectHash;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -16,16 +18,26 @@ import java.util.Map;
  * ex.
  * Router router = new Router();
  * router.get("/foo", (ctx, next) -> ctx.response().body("Foobar"));
+ *
+ * Once all routes are added, calling freeze() compiles them into a lookup
+ * table that finds a route without allocating anything, for endpoints that
+ * are hit often enough for that to matter.
  */
 public class SimpleRouter implements Middleware {
 
     private Map<String, MiddlewareChain> routes = new HashMap<>();
 
+    // Compiled routes; null until frozen
+    private volatile FrozenRoutes frozen;
+
     @Override
     public void call(Context ctx, NextMiddleware next) {
         String method = ctx.request().method();
         String path = ctx.request().path();
-        MiddlewareChain chain = routes.get(method + ":" + path);
+        FrozenRoutes compiled = this.frozen;
+        MiddlewareChain chain = (compiled != null)
+                ? compiled.get(method, path)
+                : routes.get(method + ":" + path);
         if(chain != null) {
             chain.call(ctx);
         }
@@ -41,6 +53,9 @@ public class SimpleRouter implements Middleware {
      * @param middleware Middleware(s) to execute (as a chain) when the route is matched
      */
     public void addRoute(String method, String path, Middleware... middleware) {
+        if(frozen != null) {
+            throw new IllegalStateException("Cannot add routes to a frozen SimpleRouter");
+        }
         routes.put(method + ":" + path, new MiddlewareChain(middleware));
     }
 
@@ -80,4 +95,71 @@ public class SimpleRouter implements Middleware {
         this.addRoute("DELETE", path, middleware);
     }
 
+    /**
+     * Compiles the routes added so far into a table keyed first on the method
+     * and then on a perfect hash of the path, so a lookup never builds a key
+     * or allocates. No more routes can be added afterwards.
+     *
+     * @return this
+     */
+    public SimpleRouter freeze() {
+        if(frozen == null) {
+            frozen = new FrozenRoutes(routes);
+        }
+        return this;
+    }
+
+    private static class FrozenRoutes {
+        // Indexed by HttpMethods slot; null if a method has no routes
+        private final Table[] slots = new Table[HttpMethods.COUNT];
+        private final Map<String, Table> custom = new HashMap<>();
+
+        FrozenRoutes(Map<String, MiddlewareChain> routes) {
+            Map<String, Map<String, MiddlewareChain>> byMethod = new HashMap<>();
+            for(Map.Entry<String, MiddlewareChain> entry : routes.entrySet()) {
+                // Method names can't contain a colon, so the first one is the separator
+                String key = entry.getKey();
+                int colon = key.indexOf(':');
+                byMethod.computeIfAbsent(key.substring(0, colon), m -> new HashMap<>())
+                        .put(key.substring(colon + 1), entry.getValue());
+            }
+            for(Map.Entry<String, Map<String, MiddlewareChain>> entry : byMethod.entrySet()) {
+                Table table = new Table(entry.getValue());
+                int slot = HttpMethods.slot(entry.getKey());
+                if(slot == HttpMethods.OTHER) {
+                    custom.put(entry.getKey(), table);
+                }
+                else {
+                    slots[slot] = table;
+                }
+            }
+        }
+
+        MiddlewareChain get(String method, String path) {
+            int slot = HttpMethods.slot(method);
+            Table table = (slot == HttpMethods.OTHER) ? custom.get(method) : slots[slot];
+            return (table == null) ? null : table.get(path);
+        }
+    }
+
+    // Paths for one method
+    private static class Table {
+        private final PerfectHash paths;
+        private final MiddlewareChain[] chains;
+
+        Table(Map<String, MiddlewareChain> routes) {
+            String[] keys = routes.keySet().toArray(new String[0]);
+            this.paths = PerfectHash.of(keys);
+            this.chains = new MiddlewareChain[keys.length];
+            for(int i=0; i<keys.length; i++) {
+                chains[i] = routes.get(keys[i]);
+            }
+        }
+
+        MiddlewareChain get(String path) {
+            int index = paths.indexOf(path);
+            return (index < 0) ? null : chains[index];
+        }
+    }
+
 }
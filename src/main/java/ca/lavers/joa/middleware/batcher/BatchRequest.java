@@ -8,11 +8,14 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 public class BatchRequest {
 
+    @JsonProperty("name")
+    private String name;
+
     @JsonProperty("method")
     private String method;
 
@@ -28,6 +31,27 @@ public class BatchRequest {
     @JsonProperty("body")
     private String body;
 
+    @JsonProperty("bodyEncoding")
+    private BodyEncoding bodyEncoding;
+
+    @JsonProperty("sequential")
+    private boolean sequential;
+
+    // The body as bytes, decoded once from the body string
+    private byte[] bodyBytes;
+
+    /**
+     * Optional name for this request, by which later requests in the same batch can
+     * refer to values in its response (see {@link Batcher} for the syntax)
+     */
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
     public String getMethod() {
         return method;
     }
@@ -66,6 +90,53 @@ public class BatchRequest {
 
     public void setBody(String body) {
         this.body = body;
+        this.bodyBytes = null;
+    }
+
+    /**
+     * How the body is given: as text (the default), or base64 for arbitrary bytes
+     */
+    public BodyEncoding getBodyEncoding() {
+        return bodyEncoding;
+    }
+
+    public void setBodyEncoding(BodyEncoding bodyEncoding) {
+        this.bodyEncoding = bodyEncoding;
+        this.bodyBytes = null;
+    }
+
+    // The body bytes, according to the encoding
+    byte[] bodyBytes() throws IOException {
+        if(bodyBytes == null) {
+            if(body == null) {
+                bodyBytes = new byte[0];
+            }
+            else if(bodyEncoding == BodyEncoding.BASE64) {
+                try {
+                    bodyBytes = Base64.getDecoder().decode(body);
+                }
+                catch (IllegalArgumentException e) {
+                    throw new IOException("Invalid base64 request body", e);
+                }
+            }
+            else {
+                bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+            }
+        }
+        return bodyBytes;
+    }
+
+    /**
+     * If true, this request won't be started until all of the requests before it
+     * in the batch have finished, and none of the requests after it will be started
+     * until it has finished. Only matters when the Batcher runs requests concurrently.
+     */
+    public boolean isSequential() {
+        return sequential;
+    }
+
+    public void setSequential(boolean sequential) {
+        this.sequential = sequential;
     }
 
     public Request asSubRequest(Request parent) {
@@ -74,6 +145,7 @@ public class BatchRequest {
 
     class SubRequest extends AbstractRequest {
         private Request parent;
+        private String rawQuery;
 
         SubRequest(Request parent) {
             this.parent = parent;
@@ -96,9 +168,23 @@ public class BatchRequest {
 
         @Override
         public String rawQuery() {
-            return queryParams.entrySet().stream()
-                    .map(entry -> entry.getKey() + "=" + entry.getValue())
-                    .collect(Collectors.joining("&"));
+            if(rawQuery == null) {
+                StringBuilder query = new StringBuilder();
+                if(queryParams != null) {
+                    for(Map.Entry<String, String> entry : queryParams.entrySet()) {
+                        if(query.length() > 0) {
+                            query.append('&');
+                        }
+                        // The values are given decoded, so may hold & or = themselves
+                        query.append(References.encode(entry.getKey()));
+                        if(entry.getValue() != null) {
+                            query.append('=').append(References.encode(entry.getValue()));
+                        }
+                    }
+                }
+                rawQuery = query.toString();
+            }
+            return rawQuery;
         }
 
         @Override
@@ -118,7 +204,7 @@ public class BatchRequest {
 
         @Override
         public InputStream body() throws IOException {
-            return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+            return new ByteArrayInputStream(bodyBytes());
         }
     }
 
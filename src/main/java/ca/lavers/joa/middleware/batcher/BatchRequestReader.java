@@ -0,0 +1,98 @@
+package ca.lavers.joa.middleware.batcher;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the requests of a batch body (see {@link BatchRequestList}) one at a time,
+ * so each can be started before the rest of the body has even arrived, and without
+ * holding the whole list in memory.
+ */
+class BatchRequestReader implements Closeable {
+
+    private final ObjectMapper mapper;
+    private final JsonParser parser;
+    private boolean done = false;
+
+    private BatchRequestReader(ObjectMapper mapper, JsonParser parser) {
+        this.mapper = mapper;
+        this.parser = parser;
+    }
+
+    /**
+     * Reads the body up to the start of the "requests" array
+     *
+     * @throws IOException if the body couldn't be read, or doesn't have a "requests" array
+     */
+    static BatchRequestReader open(ObjectMapper mapper, InputStream body) throws IOException {
+        JsonParser parser = mapper.getFactory().createParser(body);
+        try {
+            if(parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Batch request must be an object");
+            }
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if("requests".equals(field) && value == JsonToken.START_ARRAY) {
+                    return new BatchRequestReader(mapper, parser);
+                }
+                parser.skipChildren();
+            }
+            throw new JsonParseException(parser, "Batch request has no requests");
+        }
+        catch (IOException | RuntimeException e) {
+            parser.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the next request, or returns null if there are no more. Once this has
+     * thrown, the rest of the body can't be read.
+     *
+     * @throws IOException if the body couldn't be read, or the request is malformed
+     */
+    BatchRequest next() throws IOException {
+        if(done) {
+            return null;
+        }
+        try {
+            JsonToken token = parser.nextToken();
+            if(token == JsonToken.END_ARRAY) {
+                finish();
+                return null;
+            }
+            if(token != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Expected a request object");
+            }
+            return mapper.readValue(parser, BatchRequest.class);
+        }
+        catch (IOException | RuntimeException e) {
+            done = true;
+            throw e;
+        }
+    }
+
+    // Checks that the rest of the body is well-formed, ignoring any other fields
+    private void finish() throws IOException {
+        done = true;
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            parser.nextToken();
+            parser.skipChildren();
+        }
+        if(parser.currentToken() != JsonToken.END_OBJECT || parser.nextToken() != null) {
+            throw new JsonParseException(parser, "Unexpected content after requests");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        parser.close();
+    }
+}
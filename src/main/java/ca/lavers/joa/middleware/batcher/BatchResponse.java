@@ -1,20 +1,193 @@
 package ca.lavers.joa.middleware.batcher;
 
 import com.fasterxml.jackson.annotation.JsonGetter;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.node.MissingNode;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
 import ca.lavers.joa.core.AbstractResponse;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
-import java.util.Scanner;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+@JsonPropertyOrder({"status", "headers", "body", "bodyEncoding"})
 public class BatchResponse extends AbstractResponse {
 
-    @JsonGetter("body")
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private BodyEncoding bodyEncoding = BodyEncoding.TEXT;
+
+    // Headers as (name, value) pairs in the order they were set, and the body
+    // size, so that the response can be copied
+    private final List<String> headerPairs = new ArrayList<>();
+    private long bodySize = -1;
+
+    // The whole body, once bufferBody() has been called
+    private BodyBuffer bufferedBody;
+
+    // The buffered body parsed as JSON, once asked for; MissingNode if it isn't JSON
+    private JsonNode parsedBody;
+
+    void bodyEncoding(BodyEncoding bodyEncoding) {
+        this.bodyEncoding = bodyEncoding;
+    }
+
+    @Override
+    public void header(String name, String value) {
+        super.header(name, value);
+        headerPairs.add(name);
+        headerPairs.add(value);
+    }
+
+    @Override
+    public void bodySize(long bodySize) {
+        super.bodySize(bodySize);
+        this.bodySize = bodySize;
+    }
+
+    /**
+     * Reads the whole body into memory so that the response can be copied. The
+     * body can still be read once from this response as usual.
+     */
+    void bufferBody() {
+        // Kept for good, so not from the pool
+        BodyBuffer buffer = BodyBuffer.unpooled();
+        try {
+            buffer.readFrom(this.body);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        bufferedBody = buffer;
+        this.body = bufferedBodyStream();
+    }
+
+    private ByteArrayInputStream bufferedBodyStream() {
+        return new ByteArrayInputStream(bufferedBody.bytes(), 0, bufferedBody.length());
+    }
+
+    /**
+     * The body parsed as JSON, or null if it isn't valid JSON. Only possible after
+     * {@link #bufferBody()}.
+     */
+    synchronized JsonNode parsedBody() {
+        if(parsedBody == null) {
+            try {
+                JsonNode parsed = MAPPER.readTree(bufferedBody.bytes(), 0, bufferedBody.length());
+                parsedBody = (parsed != null) ? parsed : MissingNode.getInstance();
+            }
+            catch (IOException e) {
+                parsedBody = MissingNode.getInstance();
+            }
+        }
+        return parsedBody.isMissingNode() ? null : parsedBody;
+    }
+
+    /**
+     * The body decoded as UTF-8, without reading it. Only possible after {@link #bufferBody()}.
+     */
+    String bufferedBodyAsString() {
+        return new String(bufferedBody.bytes(), 0, bufferedBody.length(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A copy of this response, with its own body stream over the same bytes.
+     * Only possible after {@link #bufferBody()}, after which any number of
+     * copies can be made, from any thread.
+     */
+    BatchResponse copy() {
+        BatchResponse copy = new BatchResponse();
+        copy.status(status());
+        for(int i=0; i<headerPairs.size(); i+=2) {
+            copy.header(headerPairs.get(i), headerPairs.get(i + 1));
+        }
+        if(bodySize >= 0) {
+            copy.bodySize(bodySize);
+        }
+        copy.bufferedBody = bufferedBody;
+        copy.body = bufferedBodyStream();
+        copy.bodyEncoding = bodyEncoding;
+        return copy;
+    }
+
+    /**
+     * The body decoded as UTF-8. This reads the body, so it can only be done once.
+     */
     public String bodyAsString() {
-        String text;
-        try (Scanner scanner = new Scanner(this.body, StandardCharsets.UTF_8.name())) {
-            text = scanner.useDelimiter("\\A").next();
-            scanner.close();
-            return text;
+        BodyBuffer buffer = BodyBuffer.acquire();
+        try {
+            buffer.readFrom(this.body);
+            return new String(buffer.bytes(), 0, buffer.length(), StandardCharsets.UTF_8);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        finally {
+            buffer.release();
+        }
+    }
+
+    @JsonGetter("status")
+    int jsonStatus() {
+        return status();
+    }
+
+    // If a header was set more than once, the last value wins
+    @JsonGetter("headers")
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    Map<String, String> jsonHeaders() {
+        Map<String, String> map = new LinkedHashMap<>();
+        for(int i=0; i<headerPairs.size(); i+=2) {
+            map.put(headerPairs.get(i), headerPairs.get(i + 1));
+        }
+        return map;
+    }
+
+    @JsonGetter("bodyEncoding")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    BodyEncoding jsonBodyEncoding() {
+        return (bodyEncoding == BodyEncoding.TEXT) ? null : bodyEncoding;
+    }
+
+    @JsonGetter("body")
+    @JsonSerialize(using = BodySerializer.class)
+    BatchResponse jsonBody() {
+        return this;
+    }
+
+    // Writes the body straight from a pooled buffer; as base64 without going
+    // through a String at all
+    static class BodySerializer extends StdSerializer<BatchResponse> {
+        BodySerializer() {
+            super(BatchResponse.class);
+        }
+
+        @Override
+        public void serialize(BatchResponse response, JsonGenerator json, SerializerProvider provider) throws IOException {
+            BodyBuffer buffer = BodyBuffer.acquire();
+            try {
+                buffer.readFrom(response.body);
+                if(response.bodyEncoding == BodyEncoding.BASE64) {
+                    json.writeBinary(buffer.bytes(), 0, buffer.length());
+                }
+                else {
+                    json.writeString(new String(buffer.bytes(), 0, buffer.length(), StandardCharsets.UTF_8));
+                }
+            }
+            finally {
+                buffer.release();
+            }
         }
     }
 
@@ -0,0 +1,446 @@
+package ca.lavers.joa.middleware.batcher;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Runs the sub-requests of one batch on an executor.
+ *
+ * Requests can be added while earlier ones are already running, e.g. as they are
+ * parsed out of the batch body. Each is started as soon as the concurrency limit
+ * and any sequential requests allow it, without the caller having to wait around
+ * to start them. Requests can also be held back until something else has finished
+ * (e.g. the requests they depend on), without holding up the ones after them.
+ * The caller collects the responses with {@link #take(int)}.
+ *
+ * Optionally, each request can be given a time limit, and the batch as a whole a
+ * deadline. A request that runs out of time gets a 504 response in its place and
+ * its thread is interrupted; once the batch deadline passes, every entry that
+ * hasn't finished yet gets a 504 and nothing more is started.
+ */
+class BatchRun {
+
+    private final Function<BatchRequest, BatchResponse> handler;
+    private final Executor executor;
+    private final int maxConcurrency;
+    private final long timeoutNanos;
+
+    // All guarded by this. Entries are dropped once started; a null entry beyond
+    // nextToStart is one that isn't run itself (see addCompleted() and addCopyOf()).
+    private final List<Pending> pending = new ArrayList<>();
+    private final List<CompletableFuture<BatchResponse>> results = new ArrayList<>();
+    private boolean closed = false;
+    private int nextToStart = 0;
+    private int running = 0;
+    private boolean sequentialRunning = false;
+    private boolean scheduling = false;
+
+    // Entries before nextToStart still waiting on something before they can start,
+    // and those of them that now can, in the order they became ready
+    private int parked = 0;
+    private final Deque<Integer> unparked = new ArrayDeque<>();
+
+    // Requests that are running, so they can be interrupted at the deadline
+    private final Set<Task> tasks = new HashSet<>();
+    private boolean expired = false;
+    // Fires expire(); cancelled once every entry has been taken, so that the timer
+    // doesn't hold on to the run until then
+    private ScheduledFuture<?> deadline;
+    private int taken = 0;
+
+    /**
+     * @param handler Runs a request, returning its response
+     * @param executor The executor to run requests on
+     * @param maxConcurrency The maximum number of requests to run at once
+     */
+    BatchRun(Function<BatchRequest, BatchResponse> handler, Executor executor, int maxConcurrency) {
+        this(handler, executor, maxConcurrency, 0, 0);
+    }
+
+    /**
+     * @param handler Runs a request, returning its response
+     * @param executor The executor to run requests on
+     * @param maxConcurrency The maximum number of requests to run at once
+     * @param timeoutNanos How long each request may take once started, or 0 for no limit
+     * @param timeLimitNanos How long from now until the batch's deadline, or 0 for no deadline
+     */
+    BatchRun(Function<BatchRequest, BatchResponse> handler, Executor executor, int maxConcurrency,
+             long timeoutNanos, long timeLimitNanos) {
+        this.handler = handler;
+        this.executor = executor;
+        this.maxConcurrency = maxConcurrency;
+        this.timeoutNanos = timeoutNanos;
+        if(timeLimitNanos > 0) {
+            this.deadline = Timer.INSTANCE.schedule(this::expire, timeLimitNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Adds a request to the end of the batch, starting it if it can start now
+     *
+     * @return The request's eventual response
+     */
+    CompletableFuture<BatchResponse> add(BatchRequest request) {
+        return add(request, null, handler);
+    }
+
+    /**
+     * Adds a request to the end of the batch that can't start until the given future
+     * has completed (successfully or not), and is then run with the given handler
+     * instead of the usual one. Requests after it can start in the meantime, unless
+     * they are sequential.
+     *
+     * @return The request's eventual response
+     */
+    CompletableFuture<BatchResponse> add(BatchRequest request, CompletableFuture<?> after,
+                                         Function<BatchRequest, BatchResponse> handler) {
+        CompletableFuture<BatchResponse> result = new CompletableFuture<>();
+        synchronized(this) {
+            if(expired) {
+                result.complete(timedOut("Batch deadline exceeded"));
+                pending.add(null);
+            }
+            else {
+                pending.add(new Pending(request, after, handler));
+            }
+            results.add(result);
+            notifyAll();
+        }
+        startMore();
+        return result;
+    }
+
+    /**
+     * Adds an entry to the end of the batch that already has its response
+     */
+    synchronized void addCompleted(BatchResponse response) {
+        pending.add(null);
+        results.add(CompletableFuture.completedFuture(response));
+        notifyAll();
+    }
+
+    /**
+     * Adds an entry to the end of the batch whose response is a copy of an
+     * earlier entry's, once that has finished (see {@link BatchResponse#copy()})
+     *
+     * @param earlier The earlier entry's response, as returned by {@link #add(BatchRequest)}
+     * @return The copy
+     */
+    synchronized CompletableFuture<BatchResponse> addCopyOf(CompletableFuture<BatchResponse> earlier) {
+        CompletableFuture<BatchResponse> copy = earlier.thenApply(BatchResponse::copy);
+        pending.add(null);
+        results.add(copy);
+        notifyAll();
+        return copy;
+    }
+    /**
+     * Marks the end of the batch; nothing more will be added
+     */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+        cancelDeadlineIfDrained();
+    }
+
+    /**
+     * Waits for the entry at the given index to finish and returns its response,
+     * after which this run no longer holds on to it. Returns null if the batch
+     * was closed with fewer entries.
+     *
+     * @throws CompletionException wrapping whatever the request threw, if it did
+     */
+    BatchResponse take(int index) {
+        CompletableFuture<BatchResponse> result;
+        synchronized(this) {
+            while(index >= results.size() && !closed) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CompletionException(e);
+                }
+            }
+            if(index >= results.size()) {
+                return null;
+            }
+            result = results.get(index);
+        }
+        try {
+            return result.join();
+        }
+        finally {
+            // Only once it's finished, since until then it's still needed to start the request
+            synchronized(this) {
+                if(results.set(index, null) != null) {
+                    taken++;
+                    cancelDeadlineIfDrained();
+                }
+            }
+        }
+    }
+
+    // Guarded by this
+    private void cancelDeadlineIfDrained() {
+        if(deadline != null && closed && taken == results.size()) {
+            deadline.cancel(false);
+            deadline = null;
+        }
+    }
+
+    /**
+     * True if the batch deadline is still set to fire
+     */
+    synchronized boolean hasDeadlinePending() {
+        return deadline != null;
+    }
+
+    /**
+     * Waits for the batch to be closed and every request to finish, and returns
+     * their responses in order. If any of them threw, the first exception is
+     * rethrown once all of them have finished.
+     */
+    List<BatchResponse> awaitAll() {
+        List<BatchResponse> responses = new ArrayList<>();
+        RuntimeException failure = null;
+        for(int i=0; ; i++) {
+            try {
+                BatchResponse response = take(i);
+                if(response == null) {
+                    break;
+                }
+                responses.add(response);
+            }
+            catch (CompletionException e) {
+                if(failure == null) {
+                    failure = (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause() : e;
+                }
+            }
+        }
+        if(failure != null) {
+            throw failure;
+        }
+        return responses;
+    }
+
+    // Starts as many requests as are allowed to run now. Only one thread does this
+    // at a time; any others leave it to that one, so that an executor that runs
+    // tasks immediately doesn't lead to ever-deeper recursion.
+    private void startMore() {
+        synchronized(this) {
+            if(scheduling) {
+                return;
+            }
+            scheduling = true;
+        }
+        while(true) {
+            Pending next;
+            CompletableFuture<BatchResponse> result;
+            synchronized(this) {
+                int index = nextStartable();
+                if(index < 0) {
+                    scheduling = false;
+                    return;
+                }
+                next = pending.get(index);
+                result = results.get(index);
+                pending.set(index, null);
+                running++;
+                sequentialRunning = next.request.isSequential();
+            }
+            launch(next, result);
+        }
+    }
+
+    // The index of the next entry that can start now, or -1 if none can. Any that
+    // have to wait for something are parked along the way, to be picked up again
+    // when it completes.
+    private int nextStartable() {
+        if(expired || running >= maxConcurrency || sequentialRunning) {
+            return -1;
+        }
+        if(!unparked.isEmpty()) {
+            parked--;
+            return unparked.poll();
+        }
+        while(nextToStart < pending.size()) {
+            Pending next = pending.get(nextToStart);
+            if(next == null) {
+                nextToStart++;
+                continue;
+            }
+            // Sequential requests wait for everything before them to finish
+            if(next.request.isSequential() && (running > 0 || parked > 0)) {
+                return -1;
+            }
+            if(next.after != null && !next.after.isDone()) {
+                final int index = nextToStart++;
+                parked++;
+                next.after.whenComplete((value, error) -> unpark(index));
+                continue;
+            }
+            return nextToStart++;
+        }
+        return -1;
+    }
+
+    private void unpark(int index) {
+        synchronized(this) {
+            unparked.add(index);
+        }
+        startMore();
+    }
+
+    private void launch(Pending next, CompletableFuture<BatchResponse> result) {
+        final Task task = new Task();
+        synchronized(this) {
+            tasks.add(task);
+        }
+        final ScheduledFuture<?> timeout = (timeoutNanos > 0)
+                ? Timer.INSTANCE.schedule(() -> {
+                    if(result.complete(timedOut("Sub-request timed out"))) {
+                        task.interrupt();
+                        finished(task);
+                    }
+                }, timeoutNanos, TimeUnit.NANOSECONDS)
+                : null;
+        try {
+            CompletableFuture.supplyAsync(() -> task.run(() -> next.handler.apply(next.request)), executor)
+                    .whenComplete((response, error) -> {
+                        if(timeout != null) {
+                            timeout.cancel(false);
+                        }
+                        finished(task);
+                        if(error != null) {
+                            result.completeExceptionally(
+                                    (error instanceof CompletionException) ? error.getCause() : error);
+                        }
+                        else {
+                            result.complete(response);
+                        }
+                    });
+        }
+        catch (RejectedExecutionException e) {
+            if(timeout != null) {
+                timeout.cancel(false);
+            }
+            finished(task);
+            result.completeExceptionally(e);
+        }
+    }
+
+    // Frees the request's place against the concurrency limit, when it finishes or
+    // is given up on, whichever is first
+    private void finished(Task task) {
+        synchronized(this) {
+            if(!tasks.remove(task)) {
+                return;
+            }
+            running--;
+            sequentialRunning = false;
+        }
+        startMore();
+    }
+
+    // Gives every entry that hasn't finished a 504, and stops starting any more
+    private void expire() {
+        List<CompletableFuture<BatchResponse>> unfinished = new ArrayList<>();
+        List<Task> interrupted;
+        synchronized(this) {
+            expired = true;
+            for(CompletableFuture<BatchResponse> result : results) {
+                if(result != null && !result.isDone()) {
+                    unfinished.add(result);
+                }
+            }
+            interrupted = new ArrayList<>(tasks);
+        }
+        for(CompletableFuture<BatchResponse> result : unfinished) {
+            result.complete(timedOut("Batch deadline exceeded"));
+        }
+        for(Task task : interrupted) {
+            task.interrupt();
+        }
+    }
+
+    private static BatchResponse timedOut(String message) {
+        BatchResponse response = new BatchResponse();
+        response.status(504);
+        response.body(message);
+        // So that it can be copied and referred to like any other
+        response.bufferBody();
+        return response;
+    }
+
+    // A running request, which can be interrupted only while it's actually running
+    private static class Task {
+        private Thread thread;
+        private boolean interrupted = false;
+
+        BatchResponse run(Supplier<BatchResponse> request) {
+            synchronized(this) {
+                if(interrupted) {
+                    return null;
+                }
+                thread = Thread.currentThread();
+            }
+            try {
+                return request.get();
+            }
+            finally {
+                synchronized(this) {
+                    thread = null;
+                    // Don't leave a pooled thread interrupted for its next task
+                    Thread.interrupted();
+                }
+            }
+        }
+
+        synchronized void interrupt() {
+            interrupted = true;
+            if(thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    // Fires timeouts; created on first use
+    private static class Timer {
+        static final ScheduledThreadPoolExecutor INSTANCE = create();
+
+        private static ScheduledThreadPoolExecutor create() {
+            ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "batcher-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.setRemoveOnCancelPolicy(true);
+            return timer;
+        }
+    }
+
+    private static class Pending {
+        final BatchRequest request;
+        final CompletableFuture<?> after;
+        final Function<BatchRequest, BatchResponse> handler;
+
+        Pending(BatchRequest request, CompletableFuture<?> after, Function<BatchRequest, BatchResponse> handler) {
+            this.request = request;
+            this.after = after;
+            this.handler = handler;
+        }
+    }
+}
@@ -3,9 +3,28 @@ package ca.lavers.joa.middleware.batcher;
 import ca.lavers.joa.core.Context;
 import ca.lavers.joa.core.Middleware;
 import ca.lavers.joa.core.NextMiddleware;
+import ca.lavers.joa.core.errors.HttpException;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * Request-batching middleware
@@ -30,6 +49,33 @@ import java.util.UUID;
  * - "batcher"/"originalRequest" is the original Request object representing the batch request itself
  * - "batcher"/"batchId" is a unique ID string generated for this batch request; it will be the same for
  *      all sub-requests in this same batch.
+ * - "batcher"/"deadline" is the Instant by which the sub-request must be finished, if the Batcher
+ *      has a sub-request timeout or batch deadline set. Middleware that does slow work can use it
+ *      to cut that work short.
+ *
+ * By default the sub-requests are run one at a time, in order. If enabled with
+ * {@code .withConcurrency()}, they are instead run on an executor, with up to the given
+ * number from the same batch running at once. The responses are still returned in the
+ * same order as the requests. Requests that depend on the ones before them (e.g. a
+ * read following a write) can be marked as sequential (see {@link BatchRequest#isSequential()}).
+ * Middleware after the Batcher must be safe to call from multiple threads at once to use this.
+ *
+ * With {@code .withStreaming()}, the batch response is written out as the sub-requests
+ * finish rather than all at once at the end. With {@code .withIncrementalParsing()}, each
+ * sub-request is started as soon as it has been read from the batch body.
+ *
+ * A sub-request can use values from the response of an earlier sub-request in the same batch
+ * that was given a {@code "name"}, by writing {@code ${name:/json/pointer}} in its path, query
+ * parameter values or body (see {@link References}). It is held back until the requests it
+ * refers to have finished, while later requests that don't depend on them can go ahead. If a
+ * request it refers to failed (4xx or 5xx) or the pointer finds nothing, it isn't run, and gets
+ * a 424 status instead.
+ *
+ * Time spent on a batch can be bounded with {@code .withSubRequestTimeout()} and
+ * {@code .withBatchDeadline()}; sub-requests that run out of time get a 504 status.
+ *
+ * With {@code .withDuplicateCoalescing()}, identical read-only sub-requests in the same
+ * batch are only run once, and share the response.
  *
  * Ex.
  *
@@ -42,6 +88,26 @@ public class Batcher implements Middleware {
 
     private final String path;
 
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    // Bytes of output that can be waiting for the client before streaming pauses
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    // Runs sub-requests concurrently if set; otherwise they're run in order on the calling thread
+    private Executor executor;
+    private int maxConcurrency = 1;
+
+    private boolean streaming = false;
+    private boolean incremental = false;
+
+    private BodyEncoding responseBodyEncoding = BodyEncoding.TEXT;
+
+    private boolean coalescing = false;
+
+    // Time limits, in nanoseconds; 0 if none
+    private long subRequestTimeout = 0;
+    private long batchDeadline = 0;
+
     public Batcher() {
         this.path = "/batch";
     }
@@ -50,37 +116,228 @@ public class Batcher implements Middleware {
         this.path = path;
     }
 
+    /**
+     * Run the sub-requests of each batch concurrently, with at most the given number
+     * running at once for any one batch. They are run on virtual threads if the JVM
+     * supports them, otherwise on a shared pool of daemon threads.
+     *
+     * @param maxConcurrency The maximum number of sub-requests from a single batch to run at once
+     */
+    public Batcher withConcurrency(int maxConcurrency) {
+        return withConcurrency(maxConcurrency, DefaultExecutor.INSTANCE);
+    }
+
+    /**
+     * Run the sub-requests of each batch concurrently on the given executor, with
+     * at most the given number running at once for any one batch.
+     *
+     * @param maxConcurrency The maximum number of sub-requests from a single batch to run at once
+     * @param executor The executor to run the sub-requests on
+     */
+    public Batcher withConcurrency(int maxConcurrency, Executor executor) {
+        if(maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be at least 1");
+        }
+        this.maxConcurrency = maxConcurrency;
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Stream the batch response, writing each sub-response out as soon as it and
+     * the ones before it have finished, rather than holding all of them until the
+     * whole batch is done.
+     *
+     * The sub-requests are run in the background after this Batcher returns, so
+     * middleware before the Batcher will see a 200 response whose body is still
+     * being produced. An exception thrown by a sub-request can't fail the whole
+     * batch at that point, so it is reported in that sub-request's entry instead
+     * (as a 500, or the status of an HttpException).
+     *
+     * The response is written from a background task, on the executor given to
+     * {@link #withConcurrency(int, Executor)} if any; a fixed-size executor needs
+     * a thread to spare for it beyond the concurrency limit.
+     */
+    public Batcher withStreaming() {
+        this.streaming = true;
+        return this;
+    }
+
+    /**
+     * Read the batch body incrementally, starting each sub-request as soon as it
+     * has been read rather than once the whole body has been parsed. This also
+     * means the parsed requests don't all need to be held in memory at once.
+     *
+     * If the body turns out to be malformed part way through, the requests before
+     * that point are still run, and an entry with a 400 status describing the
+     * problem is added after their responses. (A body that doesn't start out as a
+     * batch at all is still rejected outright with a 400.)
+     *
+     * The sub-requests are run on the executor given to {@link #withConcurrency(int, Executor)},
+     * or if none, one at a time on a background thread.
+     */
+    public Batcher withIncrementalParsing() {
+        this.incremental = true;
+        return this;
+    }
+
+    /**
+     * Sets how sub-response bodies are written in the batch response. Defaults to
+     * {@link BodyEncoding#TEXT}, which assumes bodies are UTF-8 text; use
+     * {@link BodyEncoding#BASE64} if they might not be. Base64 bodies are marked
+     * with {@code "bodyEncoding": "base64"} in their entry.
+     *
+     * (Sub-request bodies can be given as base64 by setting their own
+     * {@code bodyEncoding}, regardless of this setting.)
+     */
+    public Batcher withResponseBodyEncoding(BodyEncoding encoding) {
+        this.responseBodyEncoding = encoding;
+        return this;
+    }
+
+    /**
+     * Only run identical sub-requests in a batch once, giving each of them a copy
+     * of the same response. Requests are identical if they have the same method,
+     * path, query parameters, headers and body.
+     *
+     * Only GET, HEAD and OPTIONS requests are shared, and not across a request with
+     * any other method (since it might change what a later request would see), nor
+     * if they are sequential. The responses of requests that could be shared are
+     * held in memory in full, so they can be copied.
+     */
+    public Batcher withDuplicateCoalescing() {
+        this.coalescing = true;
+        return this;
+    }
+
+    /**
+     * Give up on any sub-request that takes longer than the given time, giving its
+     * entry a 504 status instead. Its thread is interrupted, and the rest of the
+     * batch carries on without it.
+     *
+     * Setting this runs sub-requests on an executor (see {@link #withConcurrency(int)}),
+     * one at a time unless concurrency is enabled, so that the batch can stop waiting
+     * for them.
+     */
+    public Batcher withSubRequestTimeout(Duration timeout) {
+        this.subRequestTimeout = timeout.toNanos();
+        return this;
+    }
+
+    /**
+     * Give up on the batch once the given time has passed since it started. Every
+     * sub-request that hasn't finished by then gets a 504 status; any still running
+     * are interrupted, and the rest are not started at all.
+     *
+     * Setting this runs sub-requests on an executor, as for {@link #withSubRequestTimeout(Duration)}.
+     */
+    public Batcher withBatchDeadline(Duration deadline) {
+        this.batchDeadline = deadline.toNanos();
+        return this;
+    }
+
     @Override
     public void call(Context ctx, NextMiddleware next) {
         if("POST".equals(ctx.request().method()) && this.path.equals(ctx.request().path())) {
+            if(incremental || streaming || executor != null || subRequestTimeout > 0 || batchDeadline > 0) {
+                runBatch(ctx, next);
+                return;
+            }
+
             BatchRequestList body = getBody(ctx);
             if(body == null) {
-                ctx.response().status(400);
-                ctx.response().body("Bad batch request");
+                badRequest(ctx);
                 return;
             }
 
-            final String batchId = UUID.randomUUID().toString();
+            Batch batch = new Batch(ctx, next, null);
 
             BatchResponseList responseList = new BatchResponseList();
 
             for(BatchRequest r : body.getRequests()) {  // TODO - NPE handling
                 // TODO -- handle exceptions thrown by next middleware
-                responseList.addResponse(handleSubRequest(r, ctx, batchId, next));
+                responseList.addResponse(batch.add(r).join());
             }
 
+            sendResponseList(ctx, responseList);
+        }
+        else {
+            next.run();
+        }
+    }
+
+    // Runs a batch through a BatchRun, for any of the non-default modes
+    private void runBatch(Context ctx, NextMiddleware next) {
+        final Executor runOn = (executor != null) ? executor : DefaultExecutor.INSTANCE;
+        final Batch batch = new Batch(ctx, next, runOn);
+        final BatchRun run = batch.run;
+
+        if(incremental) {
+            BatchRequestReader reader;
             try {
-                ctx.response().body(responseList);
-            } catch (IOException e) {
-                ctx.response().status(500);
-                ctx.response().body("Unable to serialize response");
+                reader = BatchRequestReader.open(MAPPER, ctx.request().body());
+            } catch (Exception e) {
+                badRequest(ctx);
+                return;
+            }
+            if(streaming) {
+                startStreaming(run, ctx);
             }
+            batch.readRequests(reader);
         }
         else {
-            next.run();
+            BatchRequestList body = getBody(ctx);
+            if(body == null || body.getRequests() == null) {
+                badRequest(ctx);
+                return;
+            }
+            if(streaming) {
+                startStreaming(run, ctx);
+            }
+            for(BatchRequest r : body.getRequests()) {
+                batch.add(r);
+            }
+            run.close();
+        }
+
+        if(!streaming) {
+            BatchResponseList responseList = new BatchResponseList();
+            for(BatchResponse response : run.awaitAll()) {
+                responseList.addResponse(response);
+            }
+            sendResponseList(ctx, responseList);
+        }
+    }
+
+    private static void badRequest(Context ctx) {
+        ctx.response().status(400);
+        ctx.response().body("Bad batch request");
+    }
+
+    private static void sendResponseList(Context ctx, BatchResponseList responseList) {
+        try {
+            ctx.response().body(responseList);
+        } catch (IOException e) {
+            ctx.response().status(500);
+            ctx.response().body("Unable to serialize response");
         }
     }
 
+    private void startStreaming(BatchRun run, Context ctx) {
+        final PipedOutputStream out = new PipedOutputStream();
+        try {
+            ctx.response().body(new PipedInputStream(out, STREAM_BUFFER_SIZE));
+        } catch (IOException e) {
+            // Can't happen; the pipe is brand new
+            throw new IllegalStateException(e);
+        }
+        ctx.response().status(200);
+        ctx.response().header("Content-Type", "application/json");
+
+        Executor writer = (executor != null) ? executor : DefaultExecutor.INSTANCE;
+        writer.execute(() -> streamResponses(run, out));
+    }
+
     private BatchRequestList getBody(Context ctx) {
         try {
             return ctx.request().parseBody(BatchRequestList.class);
@@ -90,13 +347,202 @@ public class Batcher implements Middleware {
         }
     }
 
-    private BatchResponse handleSubRequest(BatchRequest request, Context ctx, String batchId, NextMiddleware next) {
+    // Writes the responses to out, each as soon as it and all of the ones before
+    // it have finished
+    private static void streamResponses(BatchRun run, OutputStream out) {
+        try(JsonGenerator json = MAPPER.getFactory().createGenerator(out)) {
+            json.writeStartObject();
+            json.writeArrayFieldStart("responses");
+            for(int i=0; ; i++) {
+                BatchResponse response;
+                try {
+                    response = run.take(i);
+                    if(response == null) {
+                        break;
+                    }
+                }
+                catch (CompletionException e) {
+                    // Too late to fail the whole batch; report it in this entry instead
+                    response = errorResponse(e.getCause());
+                }
+                MAPPER.writeValue(json, response);
+                json.flush();
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+        }
+        catch (IOException e) {
+            // Most likely the client has gone away; nobody left to tell
+        }
+    }
+
+    private static BatchResponse errorResponse(Throwable e) {
+        BatchResponse response = new BatchResponse();
+        if(e instanceof HttpException) {
+            HttpException he = (HttpException) e;
+            response.status(he.getStatus());
+            response.body(he.getReturnedMessage());
+        }
+        else {
+            response.status(500);
+            response.body("Internal Server Error");
+        }
+        return response;
+    }
+
+    private BatchResponse handleSubRequest(BatchRequest request, Context ctx, String batchId, Instant deadline,
+                                           NextMiddleware next) {
         BatchResponse response = new BatchResponse();
+        response.bodyEncoding(responseBodyEncoding);
         Context newContext = new Context(request.asSubRequest(ctx.request()), response);
         // TODO -- copy any attributes from the old context into the new one?
         newContext.put(NS, "originalRequest", ctx.request());
         newContext.put(NS, "batchId", batchId);
+        if(deadline != null) {
+            newContext.put(NS, "deadline", deadline);
+        }
         next.runWithAlternateContext(newContext);
+        if(request.getName() != null || (coalescing && DuplicateRequests.isShareable(request))) {
+            // A later request may refer to it, or need a copy of it
+            response.bufferBody();
+        }
         return response;
     }
+
+    // One batch being handled: runs its requests, either inline or through a
+    // BatchRun, keeping track of what later requests can refer to or share
+    private class Batch {
+        private final Context ctx;
+        private final NextMiddleware next;
+        private final String batchId = UUID.randomUUID().toString();
+        private final long started = System.nanoTime();
+
+        // Null if requests are run inline as they're added
+        private final BatchRun run;
+
+        // Only used by the thread adding requests
+        private final Map<String, CompletableFuture<BatchResponse>> named = new HashMap<>();
+        private final DuplicateRequests<CompletableFuture<BatchResponse>> duplicates =
+                coalescing ? new DuplicateRequests<>() : null;
+
+        Batch(Context ctx, NextMiddleware next, Executor runOn) {
+            this.ctx = ctx;
+            this.next = next;
+            this.run = (runOn != null)
+                    ? new BatchRun(r -> handleSubRequest(r, ctx, batchId, deadline(), next), runOn, maxConcurrency,
+                                   subRequestTimeout, batchDeadline)
+                    : null;
+        }
+
+        // Adds a request to the batch, returning its eventual response. Inline,
+        // the request has been run by the time this returns.
+        CompletableFuture<BatchResponse> add(BatchRequest request) {
+            // Only the responses to this point are visible, however many later requests share a name
+            Map<String, CompletableFuture<BatchResponse>> refs = new HashMap<>();
+            for(String name : References.namesIn(request, named.keySet())) {
+                refs.put(name, named.get(name));
+            }
+
+            Supplier<CompletableFuture<BatchResponse>> start;
+            Function<CompletableFuture<BatchResponse>, CompletableFuture<BatchResponse>> copy;
+            if(run == null) {
+                start = () -> CompletableFuture.completedFuture(handle(request, refs));
+                copy = earlier -> CompletableFuture.completedFuture(earlier.join().copy());
+            }
+            else if(refs.isEmpty()) {
+                start = () -> run.add(request);
+                copy = run::addCopyOf;
+            }
+            else {
+                CompletableFuture<?> after = CompletableFuture.allOf(refs.values().toArray(new CompletableFuture<?>[0]));
+                start = () -> run.add(request, after, r -> handle(r, refs));
+                copy = run::addCopyOf;
+            }
+
+            CompletableFuture<BatchResponse> response = (duplicates != null)
+                    ? duplicates.run(request, refs, start, copy)
+                    : start.get();
+            if(request.getName() != null) {
+                named.put(request.getName(), response);
+            }
+            return response;
+        }
+
+        // Adds each request to the run as it is read
+        void readRequests(BatchRequestReader reader) {
+            try(BatchRequestReader r = reader) {
+                BatchRequest request;
+                while((request = r.next()) != null) {
+                    add(request);
+                }
+            }
+            catch (Exception e) {
+                BatchResponse error = new BatchResponse();
+                error.status(400);
+                error.body("Bad batch request: " + ((e instanceof JsonProcessingException)
+                        ? ((JsonProcessingException) e).getOriginalMessage()
+                        : e.getMessage()));
+                run.addCompleted(error);
+            }
+            finally {
+                run.close();
+            }
+        }
+
+        // When a sub-request starting now has to finish by, or null if there's no limit
+        private Instant deadline() {
+            long remaining = Long.MAX_VALUE;
+            if(subRequestTimeout > 0) {
+                remaining = subRequestTimeout;
+            }
+            if(batchDeadline > 0) {
+                remaining = Math.min(remaining, started + batchDeadline - System.nanoTime());
+            }
+            return (remaining == Long.MAX_VALUE) ? null : Instant.now().plusNanos(remaining);
+        }
+
+        // Fills in the request's references from the (finished) responses they
+        // refer to, then runs it; or if that's not possible, fails it with a 424
+        private BatchResponse handle(BatchRequest request, Map<String, CompletableFuture<BatchResponse>> refs) {
+            if(!refs.isEmpty()) {
+                Map<String, BatchResponse> responses = new HashMap<>();
+                for(Map.Entry<String, CompletableFuture<BatchResponse>> ref : refs.entrySet()) {
+                    CompletableFuture<BatchResponse> response = ref.getValue();
+                    responses.put(ref.getKey(), response.isCompletedExceptionally() ? null : response.join());
+                }
+                try {
+                    request = References.resolve(request, responses);
+                }
+                catch (References.UnresolvedReferenceException e) {
+                    BatchResponse failed = new BatchResponse();
+                    failed.status(424);
+                    failed.body("Failed dependency: " + e.getMessage());
+                    failed.bufferBody();
+                    return failed;
+                }
+            }
+            return handleSubRequest(request, ctx, batchId, deadline(), next);
+        }
+    }
+
+    // Created on first use of withConcurrency()
+    private static class DefaultExecutor {
+        static final Executor INSTANCE = create();
+
+        private static Executor create() {
+            try {
+                // Only present from Java 21
+                Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (Executor) virtual.invoke(null);
+            }
+            catch (ReflectiveOperationException e) {
+                AtomicInteger count = new AtomicInteger();
+                return Executors.newCachedThreadPool(runnable -> {
+                    Thread thread = new Thread(runnable, "batcher-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+    }
 }
@@ -0,0 +1,83 @@
+package ca.lavers.joa.middleware.batcher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Growable byte buffer for reading sub-response bodies into. A few are kept in a
+ * pool shared by all threads (sub-requests may each run on a thread of their own,
+ * e.g. a virtual thread), so most bodies can be read without a new allocation.
+ */
+final class BodyBuffer {
+
+    private static final int INITIAL_SIZE = 8 * 1024;
+
+    // Buffers that have grown past this aren't kept once released
+    private static final int MAX_RETAINED_SIZE = 256 * 1024;
+
+    // Most buffers kept for reuse; any more released are dropped
+    private static final int POOL_SIZE = 32;
+
+    private static final BlockingQueue<BodyBuffer> POOL = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private byte[] bytes = new byte[INITIAL_SIZE];
+    private int length = 0;
+
+    private BodyBuffer() {
+    }
+
+    /**
+     * An empty buffer, from the pool if there's one free. Must be given back with
+     * {@link #release()}.
+     */
+    static BodyBuffer acquire() {
+        BodyBuffer buffer = POOL.poll();
+        return (buffer != null) ? buffer : new BodyBuffer();
+    }
+
+    /**
+     * An empty buffer that isn't from the pool, for contents that need to be kept;
+     * its array can be held on to rather than copied, and it must not be released.
+     */
+    static BodyBuffer unpooled() {
+        return new BodyBuffer();
+    }
+
+    void release() {
+        length = 0;
+        if(bytes.length <= MAX_RETAINED_SIZE) {
+            POOL.offer(this);
+        }
+    }
+
+    /**
+     * Appends everything remaining in the stream (which may be null) to this buffer
+     */
+    BodyBuffer readFrom(InputStream in) throws IOException {
+        if(in == null) {
+            return this;
+        }
+        int read;
+        while((read = in.read(bytes, length, bytes.length - length)) != -1) {
+            length += read;
+            if(length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * The underlying array; only the first {@link #length()} bytes are the contents
+     */
+    byte[] bytes() {
+        return bytes;
+    }
+
+    int length() {
+        return length;
+    }
+}
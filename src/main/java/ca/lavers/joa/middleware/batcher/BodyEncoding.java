@@ -0,0 +1,21 @@
+package ca.lavers.joa.middleware.batcher;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * How a body is represented in the batch request or response JSON
+ */
+public enum BodyEncoding {
+
+    /**
+     * As a string; the body bytes are UTF-8 text
+     */
+    @JsonProperty("text")
+    TEXT,
+
+    /**
+     * As a base64 string of the body bytes, for content that isn't UTF-8 text
+     */
+    @JsonProperty("base64")
+    BASE64
+}
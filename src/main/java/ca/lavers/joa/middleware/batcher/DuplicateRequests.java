@@ -0,0 +1,71 @@
+package ca.lavers.joa.middleware.batcher;
+
+import ca.lavers.joa.middleware.util.HttpMethods;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Spots sub-requests in a batch that are identical to an earlier one (same method,
+ * path, query parameters, headers and body), so that they can share its response
+ * rather than being run again.
+ *
+ * Only safe requests (GET, HEAD and OPTIONS) are ever shared, and never across a
+ * request with any other method, since a request after a write should see the
+ * result of that write. Sequential requests are never shared either.
+ *
+ * @param <T> Whatever represents the outcome of running a request
+ */
+class DuplicateRequests<T> {
+
+    private final Map<List<Object>, T> seen = new HashMap<>();
+
+    /**
+     * True if the request could be shared with a later identical one
+     */
+    static boolean isShareable(BatchRequest request) {
+        return isSafe(request) && !request.isSequential();
+    }
+
+    /**
+     * Runs the request, unless an identical one has already been run, in which
+     * case returns a copy of that one's outcome instead.
+     *
+     * @param request The request
+     * @param context Anything else its outcome depends on; requests are only
+     *                identical if their contexts are equal too
+     * @param run Runs the request
+     * @param copy Makes a copy of an earlier request's outcome
+     */
+    T run(BatchRequest request, Object context, Supplier<T> run, Function<T, T> copy) {
+        if(!isSafe(request)) {
+            // Anything after this might see a different result
+            seen.clear();
+            return run.get();
+        }
+        if(request.isSequential()) {
+            return run.get();
+        }
+        List<Object> key = Arrays.asList(request.getMethod(), request.getPath(), request.getQueryParams(),
+                request.getHeaders(), request.getBody(), request.getBodyEncoding(), context);
+        T earlier = seen.get(key);
+        if(earlier != null) {
+            return copy.apply(earlier);
+        }
+        T outcome = run.get();
+        seen.put(key, outcome);
+        return outcome;
+    }
+
+    private static boolean isSafe(BatchRequest request) {
+        if(request.getMethod() == null) {
+            return false;
+        }
+        int slot = HttpMethods.slot(request.getMethod());
+        return slot == HttpMethods.GET || slot == HttpMethods.HEAD || slot == HttpMethods.OPTIONS;
+    }
+}
@@ -0,0 +1,184 @@
+package ca.lavers.joa.middleware.batcher;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * References from a sub-request to the responses of earlier, named sub-requests in
+ * the same batch.
+ *
+ * A reference is written {@code ${name:/json/pointer}} in the path, a query parameter
+ * value, or the body (unless it's base64) of a request, and is replaced with the value
+ * at that JSON pointer in the body of the named request's response. String values are
+ * inserted as they are, anything else as JSON. An empty pointer, i.e. {@code ${name:}},
+ * inserts the whole body, which need not be JSON. Values inserted into the path are
+ * percent-encoded, so that e.g. a slash in one can't change which resource is requested.
+ *
+ * The body of a request with references is taken to be JSON: string values (and whole
+ * bodies that aren't JSON) are inserted into it JSON-escaped, for use inside a string
+ * literal, so that a quote or backslash in one can't break out of it. Anything else is
+ * inserted as JSON, which is already a valid value.
+ *
+ * Only names of earlier requests are references; any other text is left alone.
+ */
+class References {
+
+    /**
+     * Thrown when a reference can't be filled in
+     */
+    static class UnresolvedReferenceException extends Exception {
+        UnresolvedReferenceException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The names referred to by the given request, out of those given
+     */
+    static Set<String> namesIn(BatchRequest request, Collection<String> names) {
+        Set<String> found = new LinkedHashSet<>();
+        if(names.isEmpty()) {
+            return found;
+        }
+        findNames(request.getPath(), names, found);
+        if(request.getQueryParams() != null) {
+            for(String value : request.getQueryParams().values()) {
+                findNames(value, names, found);
+            }
+        }
+        if(request.getBodyEncoding() != BodyEncoding.BASE64) {
+            findNames(request.getBody(), names, found);
+        }
+        return found;
+    }
+
+    /**
+     * A copy of the request with its references filled in
+     *
+     * @param responses The response of each referenced request, or null if it failed
+     * @throws UnresolvedReferenceException if a referenced request failed, or its
+     *         response has nothing at the given pointer
+     */
+    static BatchRequest resolve(BatchRequest request, Map<String, BatchResponse> responses)
+            throws UnresolvedReferenceException {
+        BatchRequest resolved = new BatchRequest();
+        resolved.setName(request.getName());
+        resolved.setMethod(request.getMethod());
+        resolved.setHeaders(request.getHeaders());
+        resolved.setSequential(request.isSequential());
+        resolved.setPath(substitute(request.getPath(), responses, Placement.PATH));
+        if(request.getQueryParams() != null) {
+            Map<String, String> queryParams = new LinkedHashMap<>();
+            for(Map.Entry<String, String> entry : request.getQueryParams().entrySet()) {
+                queryParams.put(entry.getKey(), substitute(entry.getValue(), responses, Placement.QUERY));
+            }
+            resolved.setQueryParams(queryParams);
+        }
+        resolved.setBody((request.getBodyEncoding() == BodyEncoding.BASE64)
+                ? request.getBody()
+                : substitute(request.getBody(), responses, Placement.BODY));
+        resolved.setBodyEncoding(request.getBodyEncoding());
+        return resolved;
+    }
+
+    private static void findNames(String s, Collection<String> names, Set<String> found) {
+        if(s == null) {
+            return;
+        }
+        for(int start = s.indexOf("${"); start >= 0; start = s.indexOf("${", start + 2)) {
+            int colon = s.indexOf(':', start + 2);
+            if(colon >= 0 && s.indexOf('}', colon) >= 0) {
+                String name = s.substring(start + 2, colon);
+                if(names.contains(name)) {
+                    found.add(name);
+                }
+            }
+        }
+    }
+
+    // Where a reference is, which decides how its value is escaped
+    private enum Placement {
+        PATH, QUERY, BODY
+    }
+
+    private static String substitute(String s, Map<String, BatchResponse> responses, Placement placement)
+            throws UnresolvedReferenceException {
+        if(s == null || !s.contains("${")) {
+            return s;
+        }
+        StringBuilder result = new StringBuilder();
+        int copied = 0;
+        for(int start = s.indexOf("${"); start >= 0; start = s.indexOf("${", start + 2)) {
+            int colon = s.indexOf(':', start + 2);
+            int end = (colon >= 0) ? s.indexOf('}', colon) : -1;
+            if(end < 0) {
+                break;
+            }
+            String name = s.substring(start + 2, colon);
+            if(!responses.containsKey(name)) {
+                continue;
+            }
+            result.append(s, copied, start);
+            String value = valueOf(name, s.substring(colon + 1, end), responses.get(name), placement);
+            result.append((placement == Placement.PATH) ? encode(value) : value);
+            copied = end + 1;
+            start = end - 1;
+        }
+        result.append(s, copied, s.length());
+        return result.toString();
+    }
+
+    private static String valueOf(String name, String pointer, BatchResponse response, Placement placement)
+            throws UnresolvedReferenceException {
+        if(response == null || response.status() >= 400) {
+            throw new UnresolvedReferenceException("Request \"" + name + "\" failed");
+        }
+        if(pointer.isEmpty()) {
+            String body = response.bufferedBodyAsString();
+            return (placement == Placement.BODY && response.parsedBody() == null) ? escapeJson(body) : body;
+        }
+        JsonNode body = response.parsedBody();
+        if(body == null) {
+            throw new UnresolvedReferenceException("Response to \"" + name + "\" is not JSON");
+        }
+        JsonNode value;
+        try {
+            value = body.at(pointer);
+        }
+        catch (IllegalArgumentException e) {
+            throw new UnresolvedReferenceException("Invalid JSON pointer: " + pointer);
+        }
+        if(value.isMissingNode()) {
+            throw new UnresolvedReferenceException("Response to \"" + name + "\" has nothing at " + pointer);
+        }
+        if(!value.isTextual()) {
+            return value.toString();
+        }
+        return (placement == Placement.BODY) ? escapeJson(value.asText()) : value.asText();
+    }
+
+    private static String escapeJson(String s) {
+        return new String(JsonStringEncoder.getInstance().quoteAsString(s));
+    }
+
+    /**
+     * Percent-encodes everything in the string but unreserved characters
+     */
+    static String encode(String s) {
+        try {
+            return URLEncoder.encode(s, StandardCharsets.UTF_8.name()).replace("+", "%20");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
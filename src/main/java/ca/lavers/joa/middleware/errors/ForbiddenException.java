@@ -0,0 +1,17 @@
+package ca.lavers.joa.middleware.errors;
+
+import ca.lavers.joa.core.errors.HttpException;
+
+/**
+ * 403 Forbidden; the client isn't allowed to make this request at all
+ */
+public class ForbiddenException extends HttpException {
+
+    public ForbiddenException() {
+        super(403, "Forbidden");
+    }
+
+    public ForbiddenException(String message) {
+        super(403, message);
+    }
+}
@@ -1,7 +1,8 @@
 package ca.lavers.joa.middleware.prefixrouter;
 
 import ca.lavers.joa.core.*;
-import ca.lavers.joa.core.util.WrappedRequest;
+import ca.lavers.joa.middleware.router.PrefixStrippingRequest;
+import ca.lavers.joa.middleware.util.SegmentTable;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -47,12 +48,22 @@ import java.util.List;
  * a v1 endpoint is requested, then the v1 version will be called even if there was a newer
  * version in v2.
  *
+ * If more than one prefix matches, the one added first is used, unless {@code .withLongestMatch()}
+ * is enabled. Matching prefixes are found by walking the segments of the request path, looking
+ * each one up in a hash table, so the number of prefixes configured doesn't affect the cost of
+ * a lookup.
+ *
  */
 public class PrefixRouter implements Middleware {
 
     private boolean fallthrough = false;
+    private boolean longestMatch = false;
     private List<Prefix> prefixes = new ArrayList<>();
 
+    // Prefixes keyed on their path segments, for finding the matching ones
+    // without checking each in turn
+    private final PrefixNode root = new PrefixNode();
+
     public PrefixRouter() {
 
     }
@@ -65,6 +76,20 @@ public class PrefixRouter implements Middleware {
         return this;
     }
 
+    /**
+     * When more than one prefix matches a request, use the longest one rather
+     * than the one added first. For example, with prefixes "/api" and "/api/v2",
+     * a request for "/api/v2/users" will go to "/api/v2" regardless of the order
+     * they were added in.
+     *
+     * With fallthrough enabled, falling through still moves on to the prefixes
+     * added after the matching one.
+     */
+    public PrefixRouter withLongestMatch() {
+        this.longestMatch = true;
+        return this;
+    }
+
     /**
      * Add a prefix and handler to this router
      *
@@ -84,7 +109,9 @@ public class PrefixRouter implements Middleware {
      */
     public PrefixRouter prefix(String prefix, MiddlewareChain chain) {
         // TODO -- check not exists already
-        prefixes.add(new Prefix(prefix, chain));
+        Prefix p = new Prefix(prefix, chain);
+        prefixes.add(p);
+        root.add(p.prefix, prefixes.size() - 1);
         return this;
     }
 
@@ -92,9 +119,9 @@ public class PrefixRouter implements Middleware {
     public void call(Context ctx, NextMiddleware next) {
         final String path = ctx.request().path();
 
-        int index = findMatchingIndex(path);
+        int index = root.find(path, longestMatch);
         if(index >= 0) {
-            if(!callHandlerByIndex(index, path, ctx)) {
+            if(!callHandlers(index, ctx)) {
                 // Fell all the way through my prefixes; call next
                 next.run();
             }
@@ -105,29 +132,27 @@ public class PrefixRouter implements Middleware {
         }
     }
 
-    private boolean callHandlerByIndex(int index, String path, Context ctx) {
-        if(index >= prefixes.size()) {
-            return false;
-        }
-        Prefix prefix = prefixes.get(index);
-        Context newContext = ctx.withAlternateRequest(new SubRequest(ctx.request(), prefix.subPath(path)));
-        EndChecker end = new EndChecker();
-        new MiddlewareChain(prefix.chain, end).call(newContext);
-        if(this.fallthrough && end.ran) {
-            return callHandlerByIndex(index + 1, path, ctx);
-        }
-        else {
+    // Calls the handler at index, then (with fallthrough enabled) each following
+    // handler in turn for as long as they call next. Returns false if they all did.
+    private boolean callHandlers(int index, Context ctx) {
+        // All of the handlers see the path with the matching prefix removed
+        Context newContext = ctx.withAlternateRequest(
+                PrefixStrippingRequest.strip(ctx.request(), prefixes.get(index).stripLength()));
+
+        if(!fallthrough) {
+            prefixes.get(index).chain.call(newContext);
             return true;
         }
-    }
 
-    private int findMatchingIndex(String path) {
-        for(int i=0; i<prefixes.size(); i++) {
-            if(prefixes.get(i).matches(path)) {
-                return i;
+        FallthroughMarker end = new FallthroughMarker();
+        for(int i=index; i<prefixes.size(); i++) {
+            end.ran = false;
+            prefixes.get(i).chain.call(newContext, end);
+            if(!end.ran) {
+                return true;
             }
         }
-        return -1;
+        return false;
     }
 
 }
@@ -145,42 +170,100 @@ class Prefix {
         this.chain = chain;
     }
 
-    boolean matches(String path) {
-        if(prefix.equals(path + "/")) {
-            return true;
-        }
-        return path.startsWith(prefix);
-    }
-
-    String subPath(String path) {
-        String subpath = path.substring(
-                path.endsWith("/") ? prefix.length() : prefix.length() -1
-        );
-        if(!subpath.startsWith("/")) {
-            subpath = "/" + subpath;
-        }
-        return subpath;
+    // Number of characters to strip from the beginning of a matching path; the
+    // trailing slash stays on the remaining path
+    int stripLength() {
+        return prefix.length() - 1;
     }
 }
 
-class SubRequest extends WrappedRequest {
-    private final String subPath;
+// Given to a prefix's chain as its next middleware, to tell whether the chain
+// called it. A new one is made for each request rather than keeping one per
+// thread, as the chain may call next from another thread.
+class FallthroughMarker implements NextMiddleware {
 
-    SubRequest(Request wrapped, String subPath) {
-        super(wrapped);
-        this.subPath = subPath;
+    volatile boolean ran;
+
+    @Override
+    public void run() {
+        ran = true;
     }
 
     @Override
-    public String path() {
-        return subPath;
+    public void runWithAlternateContext(Context ctx) {
+        ran = true;
     }
 }
 
-// Just checks to see if it was called
-class EndChecker implements Middleware {
-    boolean ran = false;
-    public void call(Context ctx, NextMiddleware next) {
-        ran = true;
+// Prefixes stored by path segment. Each node is the end of a prefix made up of
+// the segments leading to it, e.g. the node at "foo" -> "bar" is the prefix "/foo/bar/".
+class PrefixNode {
+
+    // Index of the first prefix added for this node, or -1 if none
+    private int index = -1;
+
+    // Null until the first child is added
+    private SegmentTable<PrefixNode> children;
+
+    // prefix must end with "/"
+    void add(String prefix, int index) {
+        if(!prefix.startsWith("/")) {
+            // Can never match a request path
+            return;
+        }
+        PrefixNode node = this;
+        int start = 1;
+        while(start < prefix.length()) {
+            int end = prefix.indexOf('/', start);
+            node = node.child(prefix.substring(start, end));
+            start = end + 1;
+        }
+        if(node.index < 0) {
+            node.index = index;
+        }
+    }
+
+    private PrefixNode child(String segment) {
+        if(children == null) {
+            children = new SegmentTable<>();
+        }
+        PrefixNode child = children.get(segment, 0, segment.length());
+        if(child == null) {
+            child = new PrefixNode();
+            children.put(segment, child);
+        }
+        return child;
     }
-}
\ No newline at end of file
+
+    /**
+     * Finds the index of the prefix matching the path; either the first one
+     * added, or the longest one. Returns -1 if none match.
+     *
+     * A prefix "/foo/" matches "/foo", "/foo/" and anything starting with "/foo/".
+     */
+    int find(String path, boolean longest) {
+        if(!path.isEmpty() && path.charAt(0) != '/') {
+            return -1;
+        }
+        int found = -1;
+        PrefixNode node = this;
+        int start = 1;
+        while(true) {
+            if(node.index >= 0 && (found < 0 || longest || node.index < found)) {
+                found = node.index;
+            }
+            if(start > path.length()) {
+                return found;
+            }
+            int end = path.indexOf('/', start);
+            if(end < 0) {
+                end = path.length();
+            }
+            node = (node.children != null) ? node.children.get(path, start, end) : null;
+            if(node == null) {
+                return found;
+            }
+            start = end + 1;
+        }
+    }
+}
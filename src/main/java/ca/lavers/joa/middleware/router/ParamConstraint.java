@@ -0,0 +1,224 @@
+package ca.lavers.joa.middleware.router;
+
+/**
+ * A restriction on the values a path parameter will match, written in braces
+ * after the parameter name, e.g. {@code /orders/:id{int}}.
+ *
+ * Supported constraints:
+ * - {@code int}: an optionally negative whole number that fits in a long
+ * - {@code uuid}: a UUID in its usual 8-4-4-4-12 hexadecimal form
+ * - A character class followed by {@code +} or {@code *}, e.g. {@code [a-z0-9-]+}.
+ *   Classes may contain single characters, ranges, and backslash escapes, and
+ *   may be negated with a leading {@code ^}. With no quantifier, the class
+ *   matches exactly one character.
+ *
+ * These are checked by a straight scan over the characters of the segment;
+ * no regular expressions are involved.
+ */
+abstract class ParamConstraint {
+
+    private final String spec;
+
+    private ParamConstraint(String spec) {
+        this.spec = spec;
+    }
+
+    /**
+     * The constraint as written in the route, without braces. Two constraints
+     * with the same spec match the same values.
+     */
+    String spec() {
+        return spec;
+    }
+
+    /**
+     * True if the given region of s is a value this constraint allows
+     */
+    abstract boolean matches(String s, int start, int end);
+
+    /**
+     * Parses a constraint spec (the part between the braces)
+     *
+     * @throws IllegalStateException if the spec isn't understood
+     */
+    static ParamConstraint parse(String spec) {
+        switch(spec) {
+            case "int": return new IntConstraint();
+            case "uuid": return new UuidConstraint();
+        }
+        if(spec.startsWith("[")) {
+            return CharClassConstraint.parse(spec);
+        }
+        throw new IllegalStateException("Unknown path parameter constraint: " + spec);
+    }
+
+    private static class IntConstraint extends ParamConstraint {
+        private static final String MAX = Long.toString(Long.MAX_VALUE);
+        private static final String MIN = Long.toString(Long.MIN_VALUE).substring(1);
+
+        IntConstraint() {
+            super("int");
+        }
+
+        @Override
+        boolean matches(String s, int start, int end) {
+            boolean negative = start < end && s.charAt(start) == '-';
+            int digitsStart = negative ? start + 1 : start;
+            int digits = end - digitsStart;
+            if(digits == 0) {
+                return false;
+            }
+            for(int i=digitsStart; i<end; i++) {
+                char c = s.charAt(i);
+                if(c < '0' || c > '9') {
+                    return false;
+                }
+            }
+            // Must fit in a long; equal-length numbers compare the same as strings
+            String limit = negative ? MIN : MAX;
+            if(digits != limit.length()) {
+                return digits < limit.length();
+            }
+            for(int i=0; i<digits; i++) {
+                char c = s.charAt(digitsStart + i);
+                if(c != limit.charAt(i)) {
+                    return c < limit.charAt(i);
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class UuidConstraint extends ParamConstraint {
+        UuidConstraint() {
+            super("uuid");
+        }
+
+        @Override
+        boolean matches(String s, int start, int end) {
+            if(end - start != 36) {
+                return false;
+            }
+            for(int i=0; i<36; i++) {
+                char c = s.charAt(start + i);
+                if(i == 8 || i == 13 || i == 18 || i == 23) {
+                    if(c != '-') {
+                        return false;
+                    }
+                }
+                else if(!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F'))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class CharClassConstraint extends ParamConstraint {
+        // Inclusive (low, high) pairs of the characters in the class
+        private final char[] ranges;
+        private final boolean negated;
+
+        // Quick lookup for ASCII characters, including the effect of negation
+        private final boolean[] ascii = new boolean[128];
+
+        private final int minLength;
+        private final int maxLength;
+
+        private CharClassConstraint(String spec, char[] ranges, boolean negated, int minLength, int maxLength) {
+            super(spec);
+            this.ranges = ranges;
+            this.negated = negated;
+            this.minLength = minLength;
+            this.maxLength = maxLength;
+            for(char c=0; c<128; c++) {
+                ascii[c] = inRanges(c) != negated;
+            }
+        }
+
+        static CharClassConstraint parse(String spec) {
+            int close = -1;
+            for(int i=1; i<spec.length(); i++) {
+                char c = spec.charAt(i);
+                if(c == '\\') {
+                    i++;
+                }
+                else if(c == ']') {
+                    close = i;
+                    break;
+                }
+            }
+            if(close < 0) {
+                throw new IllegalStateException("Unterminated character class in path parameter constraint: " + spec);
+            }
+
+            int minLength;
+            int maxLength;
+            String quantifier = spec.substring(close + 1);
+            switch(quantifier) {
+                case "": minLength = 1; maxLength = 1; break;
+                case "+": minLength = 1; maxLength = Integer.MAX_VALUE; break;
+                case "*": minLength = 0; maxLength = Integer.MAX_VALUE; break;
+                default:
+                    throw new IllegalStateException("Unsupported quantifier in path parameter constraint: " + spec);
+            }
+
+            int i = 1;
+            boolean negated = false;
+            if(i < close && spec.charAt(i) == '^') {
+                negated = true;
+                i++;
+            }
+
+            StringBuilder ranges = new StringBuilder();
+            while(i < close) {
+                char low = spec.charAt(i);
+                if(low == '\\') {
+                    low = spec.charAt(++i);
+                }
+                i++;
+                char high = low;
+                // A '-' between two characters makes a range; anywhere else it's literal
+                if(i + 1 < close && spec.charAt(i) == '-') {
+                    i++;
+                    high = spec.charAt(i);
+                    if(high == '\\') {
+                        high = spec.charAt(++i);
+                    }
+                    i++;
+                    if(high < low) {
+                        throw new IllegalStateException("Invalid range in path parameter constraint: " + spec);
+                    }
+                }
+                ranges.append(low).append(high);
+            }
+
+            return new CharClassConstraint(spec, ranges.toString().toCharArray(), negated, minLength, maxLength);
+        }
+
+        @Override
+        boolean matches(String s, int start, int end) {
+            int length = end - start;
+            if(length < minLength || length > maxLength) {
+                return false;
+            }
+            for(int i=start; i<end; i++) {
+                char c = s.charAt(i);
+                boolean allowed = (c < 128) ? ascii[c] : (inRanges(c) != negated);
+                if(!allowed) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean inRanges(char c) {
+            for(int i=0; i<ranges.length; i+=2) {
+                if(c >= ranges[i] && c <= ranges[i + 1]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
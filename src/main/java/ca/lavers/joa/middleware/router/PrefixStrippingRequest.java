@@ -3,21 +3,120 @@ package ca.lavers.joa.middleware.router;
 import ca.lavers.joa.core.Request;
 import ca.lavers.joa.core.util.WrappedRequest;
 
+/**
+ * A request whose path has had a prefix removed.
+ *
+ * Rather than holding a copy of the shortened path, this keeps the full path
+ * along with the offset at which the visible path begins, so stripping a prefix
+ * doesn't copy anything. The visible path is only turned into a String the
+ * first time {@link #path()} is called.
+ *
+ * Stripping a prefix from a request that has already been stripped produces a
+ * single request over the original one with a larger offset, rather than a
+ * chain of wrappers, so deeply nested routers don't pay for every level each
+ * time the path is read.
+ *
+ * Used by both {@link Router} and {@link ca.lavers.joa.middleware.prefixrouter.PrefixRouter}.
+ */
 public class PrefixStrippingRequest extends WrappedRequest {
 
-    private final String prefix;
+    private final Request base;
+    private final String fullPath;
+    private final int offset;
 
+    // If the whole path was stripped, whether to present the remainder as "/"
+    // rather than as an empty string
+    private final boolean rootIfEmpty;
+
+    private String path;
+
+    /**
+     * Wraps a request, removing the given prefix from the beginning of its path.
+     *
+     * @throws IllegalStateException if the request path doesn't start with the prefix
+     */
     public PrefixStrippingRequest(Request wrapped, String prefix) {
-        super(wrapped);
-        this.prefix = prefix;
+        this(strip(wrapped, prefix, 0, false));
+    }
+
+    private PrefixStrippingRequest(PrefixStrippingRequest from) {
+        this(from.base, from.fullPath, from.offset, from.rootIfEmpty);
+    }
+
+    private PrefixStrippingRequest(Request base, String fullPath, int offset, boolean rootIfEmpty) {
+        super(base);
+        this.base = base;
+        this.fullPath = fullPath;
+        this.offset = offset;
+        this.rootIfEmpty = rootIfEmpty;
+    }
+
+    /**
+     * Removes the given prefix from the beginning of a request's path. If the path is
+     * entirely removed, the resulting path will be empty.
+     *
+     * @throws IllegalStateException if the request path doesn't start with the prefix
+     */
+    public static PrefixStrippingRequest strip(Request request, String prefix) {
+        return strip(request, prefix, 0, false);
+    }
+
+    /**
+     * Removes the given number of characters from the beginning of a request's path,
+     * which the caller must already have checked against the path. If the path is
+     * entirely removed, the resulting path will be "/".
+     */
+    public static PrefixStrippingRequest strip(Request request, int length) {
+        return strip(request, null, length, true);
+    }
+
+    private static PrefixStrippingRequest strip(Request request, String prefix, int length, boolean rootIfEmpty) {
+        Request base = request;
+        String fullPath;
+        int offset = 0;
+        if(request instanceof PrefixStrippingRequest && !((PrefixStrippingRequest) request).isSyntheticRoot()) {
+            PrefixStrippingRequest stripped = (PrefixStrippingRequest) request;
+            base = stripped.base;
+            fullPath = stripped.fullPath;
+            offset = stripped.offset;
+        }
+        else {
+            fullPath = request.path();
+        }
+
+        if(prefix != null) {
+            if(!fullPath.startsWith(prefix, offset)) {
+                throw new IllegalStateException("Request path does not start with configured prefix; cannot strip!");
+            }
+            length = prefix.length();
+        }
+        return new PrefixStrippingRequest(base, fullPath, Math.min(offset + length, fullPath.length()), rootIfEmpty);
+    }
+
+    // True if the visible path is a "/" that doesn't appear in the full path
+    private boolean isSyntheticRoot() {
+        return rootIfEmpty && offset == fullPath.length();
+    }
+
+    /**
+     * The request path before any prefixes were stripped
+     */
+    public String fullPath() {
+        return fullPath;
+    }
+
+    /**
+     * The position in {@link #fullPath()} at which this request's path begins
+     */
+    public int offset() {
+        return offset;
     }
 
     @Override
     public String path() {
-        final String path = super.path();
-        if(path.startsWith(prefix)) {
-            return super.path().substring(prefix.length());
+        if(path == null) {
+            path = isSyntheticRoot() ? "/" : fullPath.substring(offset);
         }
-        throw new IllegalStateException("Request path does not start with configured prefix; cannot strip!");
+        return path;
     }
 }
@@ -3,14 +3,17 @@ package ca.lavers.joa.middleware.router;
 import ca.lavers.joa.core.MiddlewareChain;
 
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 class Route {
     private final String path;
-    private final Pattern pattern;
     private final List<String> paramNames = new ArrayList<>();
 
+    // The path split into segments; parameter segments are null
+    private final String[] segments;
+
+    // Constraint on each parameter segment, or null if it's unconstrained (or not a parameter)
+    private final ParamConstraint[] constraints;
+
     private final boolean isPrefix;
 
     private final MiddlewareChain middleware;
@@ -23,57 +26,52 @@ class Route {
 
     Route(String path, MiddlewareChain middleware, boolean isPrefix) {
         this.path = path;
-        this.pattern = toRegex(path, isPrefix);
         this.middleware = middleware;
         this.isPrefix = isPrefix;
-    }
-
-    private Pattern toRegex(String path, boolean isPrefix) {
-        if(path.startsWith("/")) {
-            path = path.substring(1);
-        }
 
-        StringJoiner sj = new StringJoiner("/");
-
-        for(String part : path.split("/")) {
+        String trimmed = path.startsWith("/") ? path.substring(1) : path;
+        this.segments = trimmed.split("/");
+        this.constraints = new ParamConstraint[segments.length];
+        for(int i=0; i<segments.length; i++) {
+            String part = segments[i];
             if(part.startsWith(":")) {
                 if(isPrefix) {
-                    throw new IllegalStateException("Path parameters not permitted in prefix routes: " + path);
+                    throw new IllegalStateException("Path parameters not permitted in prefix routes: " + trimmed);
                 }
-                sj.add("([^/]*)");
-                paramNames.add(part.substring(1));
-            }
-            else {
-                // TODO - Escape so raw regexes can't be passed (or is that a feature?)
-                sj.add(part);
+                String name = part.substring(1);
+                int brace = name.indexOf('{');
+                if(brace >= 0) {
+                    if(!name.endsWith("}")) {
+                        throw new IllegalStateException("Unterminated path parameter constraint: " + part);
+                    }
+                    constraints[i] = ParamConstraint.parse(name.substring(brace + 1, name.length() - 1));
+                    name = name.substring(0, brace);
+                }
+                paramNames.add(name);
+                segments[i] = null;
             }
         }
+    }
 
-        String regex = sj.toString();
+    static int segmentEnd(String path, int start) {
+        int end = path.indexOf('/', start);
+        return end < 0 ? path.length() : end;
+    }
 
-        if(isPrefix) {
-            regex += "(|/.*)";
-        }
+    public String getPath() {
+        return path;
+    }
 
-        return Pattern.compile("/" + regex);
+    String[] getSegments() {
+        return segments;
     }
 
-    public Map<String, String> match(String path) {
-        Matcher m = pattern.matcher(path);
-        if(m.matches()) {
-            Map<String, String> results = new HashMap<>();
-            for(int i=0; i<paramNames.size(); i++) {
-                results.put(paramNames.get(i), m.group(i+1));
-            }
-            return results;
-        }
-        else {
-            return null;
-        }
+    ParamConstraint[] getConstraints() {
+        return constraints;
     }
 
-    public String getPath() {
-        return path;
+    List<String> getParamNames() {
+        return paramNames;
     }
 
     public boolean isPrefix() {
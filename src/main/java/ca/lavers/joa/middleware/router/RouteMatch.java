@@ -1,15 +1,22 @@
 package ca.lavers.joa.middleware.router;
 
-import java.util.Map;
-
 public class RouteMatch {
 
-    Route route;
-    Map<String, String> match;
+    static final int[] NO_PARAMS = new int[0];
+
+    final Route route;
+
+    // The path that was matched, and the (start, end) offsets into it of each
+    // path parameter in the order they appear in the route. Parameter values
+    // are only turned into Strings when asked for.
+    private final String path;
+    private final int[] offsets;
+    private String[] values;
 
-    RouteMatch(Route route, Map<String, String> match) {
+    RouteMatch(Route route, String path, int[] offsets) {
         this.route = route;
-        this.match = match;
+        this.path = path;
+        this.offsets = offsets;
     }
 
     public String matchedPath() {
@@ -17,6 +24,50 @@ public class RouteMatch {
     }
 
     public String getParam(String name) {
-        return match.get(name);
+        int index = route.getParamNames().indexOf(name);
+        if(index < 0) {
+            return null;
+        }
+        if(values == null) {
+            values = new String[offsets.length / 2];
+        }
+        if(values[index] == null) {
+            values[index] = path.substring(offsets[index * 2], offsets[index * 2 + 1]);
+        }
+        return values[index];
+    }
+
+    /**
+     * Returns the value of a numeric path parameter (such as one declared with
+     * the {@code int} constraint, e.g. {@code /orders/:id{int}}) without
+     * creating a String for it.
+     *
+     * @throws IllegalArgumentException if there is no parameter with that name
+     * @throws NumberFormatException if the value isn't a valid long
+     */
+    public long getLongParam(String name) {
+        int index = indexOf(name);
+        return Long.parseLong(path, offsets[index * 2], offsets[index * 2 + 1], 10);
+    }
+
+    /**
+     * Returns the value of a numeric path parameter (such as one declared with
+     * the {@code int} constraint, e.g. {@code /orders/:id{int}}) without
+     * creating a String for it.
+     *
+     * @throws IllegalArgumentException if there is no parameter with that name
+     * @throws NumberFormatException if the value isn't a valid int
+     */
+    public int getIntParam(String name) {
+        int index = indexOf(name);
+        return Integer.parseInt(path, offsets[index * 2], offsets[index * 2 + 1], 10);
+    }
+
+    private int indexOf(String name) {
+        int index = route.getParamNames().indexOf(name);
+        if(index < 0) {
+            throw new IllegalArgumentException("No path parameter named " + name);
+        }
+        return index;
     }
 }
@@ -0,0 +1,175 @@
+package ca.lavers.joa.middleware.router;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of Router lookup results, keyed on request method and path.
+ *
+ * Remembers the route that matched a given path (along with the offsets of its
+ * path parameters), or that nothing matched it, so that repeat requests for the
+ * same path can skip the route search entirely.
+ *
+ * The cache is split into independently-locked segments, each of which evicts
+ * its least-recently-used path once full. Paths are only worth caching when
+ * the same ones come up repeatedly; routes with parameters that take many
+ * different values (e.g. /users/:id) will mostly just churn the cache.
+ *
+ * Enable with {@link Router#withMatchCache(int)}. Whenever the Router's routes
+ * change, the cache is replaced with an empty one; the counters carry over.
+ */
+public class RouteMatchCache {
+
+    private static final int MAX_SEGMENTS = 16;
+
+    // Cached result meaning "no route matched"
+    static final Result NO_MATCH = new Result(null, RouteMatch.NO_PARAMS);
+
+    private final int maxEntries;
+    private final Segment[] segments;
+
+    // Shared with any copies, so totals carry over when the routes change
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+
+    RouteMatchCache(int maxEntries) {
+        this(maxEntries, new LongAdder(), new LongAdder(), new LongAdder());
+    }
+
+    private RouteMatchCache(int maxEntries, LongAdder hits, LongAdder misses, LongAdder evictions) {
+        if(maxEntries < 1) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        int count = Integer.highestOneBit(Math.min(MAX_SEGMENTS, maxEntries));
+        segments = new Segment[count];
+        for(int i=0; i<count; i++) {
+            segments[i] = new Segment(maxEntries / count);
+        }
+    }
+
+    /**
+     * An empty cache of the same size, sharing this cache's counters
+     */
+    RouteMatchCache emptyCopy() {
+        return new RouteMatchCache(maxEntries, hits, misses, evictions);
+    }
+
+    /**
+     * Number of lookups that were answered from the cache
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Number of lookups that weren't in the cache
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Number of paths that have been evicted to make room for others
+     */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Number of paths currently cached
+     */
+    public int size() {
+        int size = 0;
+        for(Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Removes everything from the cache
+     */
+    public void invalidate() {
+        for(Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the cached result for the given method and path, or null if
+     * there isn't one. A cached "no match" is returned as {@link #NO_MATCH}.
+     */
+    Result get(String method, String path) {
+        Segment segment = segmentFor(path);
+        Result result = null;
+        synchronized (segment) {
+            Map<String, Result> byMethod = segment.get(path);
+            if(byMethod != null) {
+                result = byMethod.get(method);
+            }
+        }
+        if(result != null) {
+            hits.increment();
+        }
+        else {
+            misses.increment();
+        }
+        return result;
+    }
+
+    void put(String method, String path, Result result) {
+        Segment segment = segmentFor(path);
+        synchronized (segment) {
+            segment.computeIfAbsent(path, p -> new HashMap<>(4)).put(method, result);
+        }
+    }
+
+    private Segment segmentFor(String path) {
+        int h = path.hashCode();
+        return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+    }
+
+    static class Result {
+        final Route route;
+        final int[] offsets;
+
+        Result(Route route, int[] offsets) {
+            this.route = route;
+            this.offsets = offsets;
+        }
+
+        RouteMatch toMatch(String path) {
+            return route == null ? null : new RouteMatch(route, path, offsets);
+        }
+    }
+
+    // Path -> (method -> result), in least-recently-used order
+    private class Segment extends LinkedHashMap<String, Map<String, Result>> {
+        private final int maxEntries;
+
+        Segment(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = Math.max(1, maxEntries);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Map<String, Result>> eldest) {
+            if(size() > maxEntries) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package ca.lavers.joa.middleware.router;
+
+import ca.lavers.joa.core.Request;
+import ca.lavers.joa.middleware.util.HttpMethods;
+
+import java.util.*;
+
+/**
+ * Immutable snapshot of a Router's routes, compiled for lookup.
+ *
+ * A table's routes are never modified once built. Changing a Router's routes
+ * builds a new table which then replaces the old one, so lookups never need to
+ * lock, and a request that is already in progress keeps seeing one consistent
+ * set of routes. Adding a route shares the existing ones rather than copying
+ * them, and a table is only compiled when first used, or by replaceRoutes before
+ * it's swapped in, or on being frozen.
+ */
+final class RouteTable {
+
+  static final RouteTable EMPTY = new RouteTable(null, false, null, null);
+
+  // Mounts have higher priority than method-specific routes, so they're ranked
+  // in a lower band; within each band routes rank in definition order
+  private static final long METHOD_RANK_BAND = 1L << 32;
+
+  // Allow header values for every combination of standard methods, indexed by
+  // a bitmask of their slots
+  private static final String[] ALLOW = new String[1 << HttpMethods.COUNT];
+
+  static {
+    for(int mask=0; mask<ALLOW.length; mask++) {
+      StringJoiner allow = new StringJoiner(", ");
+      for(int slot=0; slot<HttpMethods.COUNT; slot++) {
+        if((mask & (1 << slot)) != 0) {
+          allow.add(HttpMethods.name(slot));
+        }
+      }
+      ALLOW[mask] = allow.toString();
+    }
+  }
+
+  // The last route defined, linked back to the ones before it; kept so that the next
+  // table can be built without copying them
+  private final Definition last;
+
+  // Whether routes can no longer be added one at a time
+  private final boolean frozen;
+
+  // Optional cache of lookup results; null if disabled. Each table has its own,
+  // since cached results refer to the routes of this table.
+  private final RouteMatchCache cache;
+
+  // The routes compiled for lookup; built on first use, so that adding many routes
+  // one after another doesn't compile each intermediate table
+  private volatile Compiled compiled;
+
+  private RouteTable(Definition last, boolean frozen, RouteMatchCache cache, Compiled compiled) {
+    this.last = last;
+    this.frozen = frozen;
+    this.cache = cache;
+    this.compiled = compiled;
+  }
+
+  // Never locks: threads that race to compile the same table each compile it, and
+  // whichever finishes last is kept, which is harmless as they're all the same
+  private Compiled compiled() {
+    Compiled c = compiled;
+    if(c == null) {
+      c = new Compiled(last);
+      compiled = c;
+    }
+    return c;
+  }
+
+  boolean isCompiled() {
+    return compiled != null;
+  }
+
+  /**
+   * Compiles the routes now, rather than on the first lookup
+   */
+  RouteTable compile() {
+    compiled();
+    return this;
+  }
+
+  /**
+   * A copy of this table with one more route added after the existing ones
+   *
+   * @throws IllegalStateException if the table is frozen
+   */
+  RouteTable withRoute(String method, Route route) {
+    if(frozen) {
+      throw new IllegalStateException("Cannot add routes to a frozen Router");
+    }
+    return new RouteTable(new Definition(method, route, last), false, emptyCache(), null);
+  }
+
+  /**
+   * A copy of this table to which no more routes can be added with {@link #withRoute}
+   */
+  RouteTable frozen() {
+    return frozen ? this : new RouteTable(last, true, cache, compiled);
+  }
+
+  /**
+   * A copy of the given table's routes, using this table's cache settings
+   */
+  RouteTable withRoutesOf(RouteTable other) {
+    return new RouteTable(other.last, frozen, emptyCache(), other.compiled);
+  }
+
+  /**
+   * A copy of this table with the given cache
+   */
+  RouteTable withCache(RouteMatchCache cache) {
+    return new RouteTable(last, frozen, cache, compiled);
+  }
+
+  RouteMatchCache getCache() {
+    return cache;
+  }
+
+  private RouteMatchCache emptyCache() {
+    return cache == null ? null : cache.emptyCopy();
+  }
+
+  // Matches against a request's path. If the request has had a prefix stripped,
+  // looks at its full path from the stripped offset rather than creating the
+  // shortened path. (The match cache needs the shortened path as its key though.)
+  RouteMatch match(String method, Request request) {
+    if(cache == null && request instanceof PrefixStrippingRequest) {
+      PrefixStrippingRequest stripped = (PrefixStrippingRequest) request;
+      // An empty remainder is presented as either "" or "/"; let the request decide
+      if(stripped.offset() < stripped.fullPath().length()) {
+        return compiled().trieFor(method).find(stripped.fullPath(), stripped.offset());
+      }
+    }
+    return match(method, request.path());
+  }
+
+  // Allocates nothing unless a route matches (or a cache entry is added)
+  RouteMatch match(String method, String path) {
+    if(cache == null) {
+      return compiled().trieFor(method).find(path);
+    }
+
+    RouteMatchCache.Result result = cache.get(method, path);
+    if(result == null) {
+      Route route = compiled().trieFor(method).findRoute(path, 0);
+      result = (route == null)
+          ? RouteMatchCache.NO_MATCH
+          : new RouteMatchCache.Result(route, RouteTrie.captureParams(route, path, 0));
+      cache.put(method, path, result);
+    }
+    return result.toMatch(path);
+  }
+
+  /**
+   * The value for an Allow header listing the methods with a route matching the
+   * given path, or null if no method has one. HEAD is listed along with GET, and
+   * OPTIONS is always listed, as the Router answers those itself.
+   *
+   * Only meant for paths that have already failed to match under the request's
+   * own method, so mounts (which match any method) aren't considered. This costs
+   * one lookup per method that has routes.
+   */
+  String allowedMethods(String path) {
+    final Compiled compiled = compiled();
+    final RouteTrie[] slots = compiled.slots;
+    final RouteTrie mountsOnly = compiled.mountsOnly;
+    int mask = 0;
+    for(int i=0; i<slots.length; i++) {
+      if(slots[i] != mountsOnly && slots[i].findRoute(path, 0) != null) {
+        mask |= 1 << i;
+      }
+    }
+    StringBuilder others = null;
+    for(Map.Entry<String, RouteTrie> entry : compiled.custom.entrySet()) {
+      if(entry.getValue().findRoute(path, 0) != null) {
+        if(others == null) {
+          others = new StringBuilder();
+        }
+        others.append(", ").append(entry.getKey());
+      }
+    }
+    if(mask == 0 && others == null) {
+      return null;
+    }
+
+    if((mask & (1 << HttpMethods.GET)) != 0) {
+      mask |= 1 << HttpMethods.HEAD;
+    }
+    mask |= 1 << HttpMethods.OPTIONS;
+    return (others == null) ? ALLOW[mask] : ALLOW[mask] + others;
+  }
+
+  private static class Definition {
+    final String method;
+    final Route route;
+
+    // The route defined before this one, or null if this is the first
+    final Definition previous;
+
+    Definition(String method, Route route, Definition previous) {
+      this.method = method;
+      this.route = route;
+      this.previous = previous;
+    }
+  }
+
+  // The routes of a table, compiled for lookup
+  private static class Compiled {
+
+    // Compiled routes for each standard method (see HttpMethods), including mounts
+    final RouteTrie[] slots = new RouteTrie[HttpMethods.COUNT];
+
+    // Method -> compiled routes for any non-standard method, including mounts,
+    // in the order the methods were first used
+    final Map<String, RouteTrie> custom = new LinkedHashMap<>();
+
+    // Compiled mounts only, for methods with no routes of their own
+    final RouteTrie mountsOnly = new RouteTrie();
+
+    Compiled(Definition last) {
+      List<Definition> definitions = new ArrayList<>();
+      for(Definition definition = last; definition != null; definition = definition.previous) {
+        definitions.add(definition);
+      }
+      Collections.reverse(definitions);
+
+      List<Route> mounts = new ArrayList<>();
+      for(Definition definition : definitions) {
+        if(Router.METHOD_ALL.equals(definition.method)) {
+          mounts.add(definition.route);
+        }
+      }
+      for(int i=0; i<mounts.size(); i++) {
+        mountsOnly.add(mounts.get(i), i);
+      }
+
+      long order = 0;
+      for(Definition definition : definitions) {
+        order++;
+        if(!Router.METHOD_ALL.equals(definition.method)) {
+          int slot = HttpMethods.slot(definition.method);
+          RouteTrie trie;
+          if(slot == HttpMethods.OTHER) {
+            trie = custom.computeIfAbsent(definition.method, m -> withMounts(mounts));
+          }
+          else {
+            if(slots[slot] == null) {
+              slots[slot] = withMounts(mounts);
+            }
+            trie = slots[slot];
+          }
+          trie.add(definition.route, METHOD_RANK_BAND + order);
+        }
+      }
+      for(int i=0; i<slots.length; i++) {
+        if(slots[i] == null) {
+          slots[i] = mountsOnly;
+        }
+      }
+    }
+
+    // The compiled routes to search for a request with the given method
+    RouteTrie trieFor(String method) {
+      int slot = HttpMethods.slot(method);
+      if(slot == HttpMethods.OTHER) {
+        return custom.getOrDefault(method, mountsOnly);
+      }
+      return slots[slot];
+    }
+
+    private static RouteTrie withMounts(List<Route> mounts) {
+      RouteTrie trie = new RouteTrie();
+      for(int i=0; i<mounts.size(); i++) {
+        trie.add(mounts.get(i), i);
+      }
+      return trie;
+    }
+  }
+}
@@ -0,0 +1,223 @@
+package ca.lavers.joa.middleware.router;
+
+import ca.lavers.joa.middleware.util.SegmentTable;
+
+import java.util.Arrays;
+
+/**
+ * Compiled form of a set of Routes, keyed on path segments.
+ *
+ * Each route is inserted with a rank; when more than one route matches a path,
+ * the one with the lowest rank wins. This lets the trie reproduce the Router's
+ * ordering rules (mounts first, then routes in definition order) while only
+ * walking the branches that the request path actually leads into.
+ *
+ * Lookups work directly on offsets into the request path and allocate nothing
+ * unless a match is found.
+ */
+class RouteTrie {
+
+    private final Node root = new Node();
+
+    /**
+     * Add a route to the trie.
+     *
+     * @param route The route to add
+     * @param rank Priority of this route; lower ranks win over higher ones
+     */
+    void add(Route route, long rank) {
+        Node node = root;
+        node.minRank = Math.min(node.minRank, rank);
+        String[] segments = route.getSegments();
+        for(int i=0; i<segments.length; i++) {
+            node = node.child(segments[i], route.getConstraints()[i]);
+            node.minRank = Math.min(node.minRank, rank);
+        }
+        if(route.isPrefix()) {
+            if(node.prefix == null || rank < node.prefix.rank) {
+                node.prefix = new Terminal(route, rank);
+            }
+        }
+        else {
+            if(node.exact == null || rank < node.exact.rank) {
+                node.exact = new Terminal(route, rank);
+            }
+        }
+    }
+
+    /**
+     * Finds the highest priority route matching the given path.
+     *
+     * @return The match, or null if no route matches
+     */
+    RouteMatch find(String path) {
+        return find(path, 0);
+    }
+
+    /**
+     * Finds the highest priority route matching the part of the given path
+     * starting at the given offset.
+     *
+     * @return The match, or null if no route matches
+     */
+    RouteMatch find(String path, int from) {
+        Route route = findRoute(path, from);
+        if(route == null) {
+            return null;
+        }
+        return new RouteMatch(route, path, captureParams(route, path, from));
+    }
+
+    /**
+     * Finds the highest priority route matching the part of the given path
+     * starting at the given offset, without capturing any path parameters.
+     *
+     * @return The matching route, or null if no route matches
+     */
+    Route findRoute(String path, int from) {
+        if(!path.startsWith("/", from)) {
+            return null;
+        }
+        Terminal best = visit(root, path, from + 1, Long.MAX_VALUE);
+        return best == null ? null : best.route;
+    }
+
+    // Returns the best terminal under node with a rank lower than bound, or null.
+    // start is the offset of the current segment in path, or past the end of
+    // path if all segments have been consumed.
+    private static Terminal visit(Node node, String path, int start, long bound) {
+        // Nothing under here can beat what we've already found
+        if(node.minRank >= bound) {
+            return null;
+        }
+        Terminal best = null;
+        if(node.prefix != null && node.prefix.rank < bound) {
+            best = node.prefix;
+            bound = best.rank;
+        }
+        if(start > path.length()) {
+            if(node.exact != null && node.exact.rank < bound) {
+                best = node.exact;
+            }
+            return best;
+        }
+
+        int end = Route.segmentEnd(path, start);
+        if(node.literals != null) {
+            Node literal = node.literals.get(path, start, end);
+            if(literal != null) {
+                Terminal found = visit(literal, path, end + 1, bound);
+                if(found != null) {
+                    best = found;
+                    bound = found.rank;
+                }
+            }
+        }
+        if(node.constrained != null) {
+            for(ConstrainedParam param : node.constrained) {
+                if(param.node.minRank < bound && param.constraint.matches(path, start, end)) {
+                    Terminal found = visit(param.node, path, end + 1, bound);
+                    if(found != null) {
+                        best = found;
+                        bound = found.rank;
+                    }
+                }
+            }
+        }
+        if(node.param != null) {
+            Terminal found = visit(node.param, path, end + 1, bound);
+            if(found != null) {
+                best = found;
+            }
+        }
+        return best;
+    }
+
+    // Offsets of each parameter's value in path, as (start, end) pairs
+    static int[] captureParams(Route route, String path, int from) {
+        int count = route.getParamNames().size();
+        if(count == 0) {
+            return RouteMatch.NO_PARAMS;
+        }
+        int[] offsets = new int[count * 2];
+        int start = from + 1;
+        int param = 0;
+        for(String segment : route.getSegments()) {
+            int end = Route.segmentEnd(path, start);
+            if(segment == null) {
+                offsets[param++] = start;
+                offsets[param++] = end;
+            }
+            start = end + 1;
+        }
+        return offsets;
+    }
+
+    private static class Terminal {
+        final Route route;
+        final long rank;
+
+        Terminal(Route route, long rank) {
+            this.route = route;
+            this.rank = rank;
+        }
+    }
+
+    private static class ConstrainedParam {
+        final ParamConstraint constraint;
+        final Node node = new Node();
+
+        ConstrainedParam(ParamConstraint constraint) {
+            this.constraint = constraint;
+        }
+    }
+
+    private static class Node {
+        SegmentTable<Node> literals;
+        ConstrainedParam[] constrained;
+        Node param;
+
+        Terminal exact;
+        Terminal prefix;
+
+        // Lowest rank of any route at or below this node
+        long minRank = Long.MAX_VALUE;
+
+        // A null segment is a path parameter, which may have a constraint
+        Node child(String segment, ParamConstraint constraint) {
+            if(segment == null && constraint != null) {
+                return constrainedChild(constraint);
+            }
+            if(segment == null) {
+                if(param == null) {
+                    param = new Node();
+                }
+                return param;
+            }
+            if(literals == null) {
+                literals = new SegmentTable<>();
+            }
+            Node child = literals.get(segment, 0, segment.length());
+            if(child == null) {
+                child = new Node();
+                literals.put(segment, child);
+            }
+            return child;
+        }
+
+        private Node constrainedChild(ParamConstraint constraint) {
+            int count = 0;
+            if(constrained != null) {
+                for(ConstrainedParam param : constrained) {
+                    if(param.constraint.spec().equals(constraint.spec())) {
+                        return param.node;
+                    }
+                }
+                count = constrained.length;
+            }
+            constrained = (constrained == null) ? new ConstrainedParam[1] : Arrays.copyOf(constrained, count + 1);
+            constrained[count] = new ConstrainedParam(constraint);
+            return constrained[count].node;
+        }
+    }
+}
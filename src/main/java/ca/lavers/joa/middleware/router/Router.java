@@ -1,9 +1,9 @@
 package ca.lavers.joa.middleware.router;
 
 import ca.lavers.joa.core.*;
+import ca.lavers.joa.middleware.util.HttpMethods;
 
-import java.util.*;
-import java.util.stream.Stream;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Router middleware supporting path parameters
@@ -12,6 +12,10 @@ import java.util.stream.Stream;
  * e.g: /users/:user/preferences
  * matches /users/alice/preferences and "alice" is stored in the "user" path variable
  *
+ * Parameters can be constrained by adding the constraint in braces after the name,
+ * e.g: /orders/:id{int} or /posts/:slug{[a-z-]+} (see {@link ParamConstraint} for
+ * the supported constraints)
+ *
  * Captured path variables are stored in a RouteMatch instance on the Context. You can
  * use the convenience method {@link #getRouteMatch(Context)} to retrieve it. (Be aware
  * that nested Routers will clobber each other's RouteMatch; TODO)
@@ -22,6 +26,10 @@ import java.util.stream.Stream;
  * call next. This allows additional routers or other middleware following this router to
  * attempt to handle any unmatched requests.
  *
+ * Optionally, the router can also answer requests for paths that it only has routes for
+ * under other methods (405 Method Not Allowed, OPTIONS and HEAD); see
+ * {@link #withMethodHandling()}.
+ *
  * Ex:
  *     router.get("/users/:user/preferences", (ctx, next) -> {
  *       RouteMatch match = Router.getRouteMatch(ctx);
@@ -40,8 +48,10 @@ public class Router implements Middleware {
 
   protected final static String METHOD_ALL = "*";
 
-  // Method -> List of routes
-  private final Map<String, List<Route>> routes = new HashMap<>();
+  // The current routes; replaced as a whole whenever they change
+  private final AtomicReference<RouteTable> table = new AtomicReference<>(RouteTable.EMPTY);
+
+  private volatile boolean methodHandling = false;
 
   /**
    * Add a route to this Router.
@@ -79,12 +89,71 @@ public class Router implements Middleware {
    */
   public Router addRoute(String method, String path, boolean isPrefix, Middleware... middleware) {
     Route route = new Route(path, new MiddlewareChain(middleware), isPrefix);
-    routes
-        .computeIfAbsent(method, m -> new ArrayList<>())
-        .add(route);
+    // Throws if frozen; checked as part of the swap, so a route can't slip in after freeze()
+    table.updateAndGet(t -> t.withRoute(method, route));
+    return this;
+  }
+
+  /**
+   * Prevents any further routes from being added to this Router with
+   * {@link #addRoute(String, String, boolean, Middleware...)} and friends.
+   *
+   * The routes can still be swapped out as a whole with {@link #replaceRoutes(Router)}.
+   * They are compiled for lookup now, rather than on the first request.
+   *
+   * @return this
+   */
+  public Router freeze() {
+    // Compiled once frozen, as no more routes can be added to it then
+    table.updateAndGet(RouteTable::frozen).compile();
     return this;
   }
 
+  /**
+   * Atomically replaces all of this Router's routes with the routes currently
+   * defined on another Router.
+   *
+   * Intended for changing routes while serving requests: build up the new routes
+   * on a separate Router, then swap them in. Requests that are already being
+   * routed finish with the old routes; any request after this returns will see
+   * the new ones. No locks are taken and in-flight requests are not paused.
+   *
+   * The other Router's cache settings are ignored; this Router keeps its own.
+   *
+   * @param source The Router to copy routes from
+   * @return this
+   */
+  public Router replaceRoutes(Router source) {
+    // Compiled before being swapped in, so that requests never have to wait for it
+    final RouteTable routes = source.table.get().compile();
+    table.updateAndGet(t -> t.withRoutesOf(routes));
+    return this;
+  }
+
+  /**
+   * Enables caching of route lookups, keyed on request method and path.
+   *
+   * Worthwhile when most requests go to a limited set of concrete paths; each
+   * distinct path that is looked up takes up one cache entry, so paths that
+   * rarely repeat will just cause evictions. Changing the routes clears the cache.
+   *
+   * @param maxEntries The maximum number of paths to remember
+   * @return this
+   */
+  public Router withMatchCache(int maxEntries) {
+    final RouteMatchCache cache = new RouteMatchCache(maxEntries);
+    table.updateAndGet(t -> t.withCache(cache));
+    return this;
+  }
+
+  /**
+   * The cache enabled with {@link #withMatchCache(int)}, or null if caching
+   * is not enabled.
+   */
+  public RouteMatchCache getMatchCache() {
+    return table.get().getCache();
+  }
+
   public Router get(String path, Middleware... chain) {
     return this.addRoute("GET", path, chain);
   }
@@ -117,35 +186,66 @@ public class Router implements Middleware {
     return this.addRoute("DELETE", path, true, chain);
   }
 
+  public Router patch(String path, Middleware... chain) {
+    return this.addRoute("PATCH", path, chain);
+  }
+
+  public Router patchPrefix(String path, Middleware... chain) {
+    return this.addRoute("PATCH", path, true, chain);
+  }
+
   public Router mount(String path, Middleware... chain) {
     return this.addRoute(METHOD_ALL, path, true, chain);
   }
 
+  /**
+   * Makes this Router answer requests whose path matches one of its routes, but
+   * not under the request's method, rather than passing them on to the next middleware:
+   *
+   * - HEAD requests are routed to the matching GET route, if there is no HEAD route
+   * - OPTIONS requests get a 204 No Content response with an Allow header listing the
+   *   methods that the path has routes for
+   * - Any other method gets a 405 Method Not Allowed response with the same Allow header
+   *
+   * Requests whose path doesn't match a route under any method are still passed on.
+   * The allowed methods are found by looking the path up in each method's routes, so
+   * this doesn't slow down requests that match, and costs at most one lookup per
+   * method for those that don't.
+   *
+   * Not needed (and counterproductive) if later middleware handles these requests
+   * for the same paths, e.g. a second Router, or {@link ca.lavers.joa.middleware.Cors}
+   * with implementOptions().
+   *
+   * @return this
+   */
+  public Router withMethodHandling() {
+    this.methodHandling = true;
+    return this;
+  }
+
   @Override
   public void call(Context ctx, NextMiddleware next) {
     final Request req = ctx.request();
+    final RouteTable routes = table.get();
 
-    Stream<Route> possibleRoutes = Stream.concat(
-            // Mounts have higher priority than method-specific routes
-            // TODO - consider putting all routes into a single list so they can be considered in defn order
-            routes.computeIfAbsent(METHOD_ALL, m -> new ArrayList<>()).stream(),
-            routes.computeIfAbsent(req.method(), m -> new ArrayList<>()).stream()
-    );
-
-    Optional<RouteMatch> result = possibleRoutes
-        .map(route -> new RouteMatch(route, route.match(req.path())))
-        .filter(ram -> ram.match != null)
-        .findFirst();
+    // Mounts have higher priority than method-specific routes
+    // TODO - consider putting all routes into a single list so they can be considered in defn order
+    RouteMatch match = routes.match(req.method(), req);
+    if(match == null && methodHandling && HttpMethods.slot(req.method()) == HttpMethods.HEAD) {
+      match = routes.match("GET", req);
+    }
 
-    if(result.isPresent()) {
-      RouteMatch match = result.get();
+    if(match != null) {
       // TODO -- Should we create a new Context with these attributes to avoid problems with nested routers?
       ctx.put(NS, MATCH, match);
       if(match.route.isPrefix()) {
         ctx.put(NS, ORIGINAL_PATH, req.path());
-        ctx = ctx.withAlternateRequest(new PrefixStrippingRequest(req, match.route.getPath()));
+        ctx = ctx.withAlternateRequest(PrefixStrippingRequest.strip(req, match.route.getPath()));
       }
-      result.get().route.getMiddleware().call(ctx);
+      match.route.getMiddleware().call(ctx);
+    }
+    else if(methodHandling && respondWithAllowedMethods(routes, ctx)) {
+      // Path exists under other methods; already answered
     }
     else {
       // Fall through to next middleware if no routes match
@@ -153,6 +253,37 @@ public class Router implements Middleware {
     }
   }
 
+  // Answers a request for a path that has routes under other methods, returning
+  // false (without touching the response) if there are none
+  private static boolean respondWithAllowedMethods(RouteTable routes, Context ctx) {
+    final String allow = routes.allowedMethods(ctx.request().path());
+    if(allow == null) {
+      return false;
+    }
+    final Response resp = ctx.response();
+    resp.header("Allow", allow);
+    if(HttpMethods.slot(ctx.request().method()) == HttpMethods.OPTIONS) {
+      resp.status(204);
+    }
+    else {
+      resp.status(405);
+    }
+    return true;
+  }
+
+  // Allocates nothing unless a route matches (or a cache entry is added)
+  RouteMatch match(String method, String path) {
+    return table.get().match(method, path);
+  }
+
+  String allowedMethods(String path) {
+    return table.get().allowedMethods(path);
+  }
+
+  boolean isCompiled() {
+    return table.get().isCompiled();
+  }
+
   /**
    * Retrieves the RouteMatch object containing the values that matched
    * any path parameters from the Context, or null if not present.
@@ -0,0 +1,132 @@
+package ca.lavers.joa.middleware.util;
+
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link WindowCounter} that counts events in fixed time buckets, rather than
+ * remembering each one.
+ *
+ * Each item has a ring of counters, one per bucket, so memory is proportional to
+ * the number of items times the number of buckets, however many events there are.
+ * Items are spread over independently locked segments, so updates for different
+ * items rarely wait on each other.
+ *
+ * The price is precision: events are counted for at least the window size, and at
+ * most one bucket longer.
+ */
+public class BucketedWindowCounter<T> implements WindowCounter<T> {
+
+    private static final int SEGMENT_BITS = 6;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+
+    private final Segment<T>[] segments;
+    private final long bucketMillis;
+    private final int buckets;
+    private final Clock clock;
+
+    /**
+     * @param windowSeconds How long events are counted for
+     * @param buckets How many buckets to divide the window into; more is more precise,
+     *                but takes more memory per item
+     */
+    public BucketedWindowCounter(long windowSeconds, int buckets) {
+        this(windowSeconds, buckets, Clock.systemUTC());
+    }
+
+    @SuppressWarnings("unchecked")
+    BucketedWindowCounter(long windowSeconds, int buckets, Clock clock) {
+        if(buckets < 1) {
+            throw new IllegalArgumentException("buckets must be at least 1");
+        }
+        this.bucketMillis = Math.max(1, (windowSeconds * 1000 + buckets - 1) / buckets);
+        // One extra, for the bucket currently filling up
+        this.buckets = buckets + 1;
+        this.clock = clock;
+        this.segments = new Segment[SEGMENTS];
+        for(int i=0; i<SEGMENTS; i++) {
+            segments[i] = new Segment<>();
+        }
+    }
+
+    @Override
+    public int addAndGetCountFor(final T item) {
+        final long bucket = clock.millis() / bucketMillis;
+        // Top bits of a multiplicative hash, as similar items often differ only in low bits
+        final Segment<T> segment = segments[(item.hashCode() * 0x9e3779b9) >>> (32 - SEGMENT_BITS)];
+        synchronized(segment) {
+            return segment.add(item, bucket, buckets);
+        }
+    }
+
+    /**
+     * The number of items held, including any with nothing left in the window that
+     * haven't been dropped yet
+     */
+    int size() {
+        int size = 0;
+        for(Segment<T> segment : segments) {
+            synchronized(segment) {
+                size += segment.rings.size();
+            }
+        }
+        return size;
+    }
+
+    private static class Segment<T> {
+        private final Map<T, Ring> rings = new HashMap<>();
+        // Unset until the first item is added; the first sweep is a window after that
+        private long lastSweep = Long.MIN_VALUE;
+
+        int add(T item, long bucket, int buckets) {
+            if(lastSweep == Long.MIN_VALUE) {
+                lastSweep = bucket;
+            }
+            // Drop items with nothing left in the window, at most once per window
+            else if(bucket - lastSweep >= buckets) {
+                rings.values().removeIf(ring -> bucket - ring.newest >= buckets);
+                lastSweep = bucket;
+            }
+            Ring ring = rings.get(item);
+            if(ring == null) {
+                ring = new Ring(buckets, bucket);
+                rings.put(item, ring);
+            }
+            return ring.add(bucket);
+        }
+    }
+
+    // Counts for the most recent buckets, indexed by bucket number modulo size
+    private static class Ring {
+        private final int[] counts;
+        private long newest;
+        private int total = 0;
+
+        Ring(int size, long bucket) {
+            this.counts = new int[size];
+            this.newest = bucket;
+        }
+
+        int add(long bucket) {
+            if(bucket > newest) {
+                if(bucket - newest >= counts.length) {
+                    Arrays.fill(counts, 0);
+                    total = 0;
+                }
+                else {
+                    for(long b = newest + 1; b <= bucket; b++) {
+                        int i = (int) (b % counts.length);
+                        total -= counts[i];
+                        counts[i] = 0;
+                    }
+                }
+                newest = bucket;
+            }
+            // If the clock went backwards, count it in the newest bucket
+            counts[(int) (newest % counts.length)]++;
+            return ++total;
+        }
+    }
+}
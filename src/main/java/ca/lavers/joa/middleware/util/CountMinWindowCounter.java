@@ -0,0 +1,127 @@
+package ca.lavers.joa.middleware.util;
+
+import java.time.Clock;
+import java.util.Arrays;
+
+/**
+ * An approximate {@link WindowCounter} that takes a fixed amount of memory, however
+ * many different items are counted, using a count-min sketch.
+ *
+ * The sketch is {@code depth} rows of {@code width} counters. Each event for an item
+ * increments one counter per row, chosen by a different hash of the item in each row,
+ * and the item's count is the smallest of its counters. Other items that share a
+ * counter can only push it up, so counts are never too low; they can be too high,
+ * by at most {@code e * N / width} (where N is the total number of events in the window
+ * for all items, and e is Euler's number) with probability at least {@code 1 - e^-depth}.
+ * Use {@link #withErrorBounds(long, int, double, double)} to size the sketch from these.
+ *
+ * Like {@link BucketedWindowCounter}, events are counted in time buckets: there is a
+ * sketch per bucket, plus a running sum of them, and events are counted for at least
+ * the window size and at most one bucket longer. Memory is {@code 4 * width * depth *
+ * (buckets + 2)} bytes.
+ *
+ * Items are told apart by their hashCode(), so items with equal hash codes are
+ * counted together.
+ */
+public class CountMinWindowCounter<T> implements WindowCounter<T> {
+
+    private final int width;
+    private final int depth;
+    private final long bucketMillis;
+    private final Clock clock;
+
+    // Per-bucket sketches, indexed by bucket number modulo their number, then row * width + column
+    private final int[][] buckets;
+    // Sum of all of the per-bucket sketches
+    private final int[] total;
+    private long newest = Long.MIN_VALUE;
+
+    /**
+     * @param windowSeconds How long events are counted for
+     * @param buckets How many buckets to divide the window into
+     * @param width The number of counters per row; the error is inversely proportional to this
+     * @param depth The number of rows; the chance of exceeding the error shrinks exponentially with this
+     */
+    public CountMinWindowCounter(long windowSeconds, int buckets, int width, int depth) {
+        this(windowSeconds, buckets, width, depth, Clock.systemUTC());
+    }
+
+    CountMinWindowCounter(long windowSeconds, int buckets, int width, int depth, Clock clock) {
+        if(buckets < 1 || width < 1 || depth < 1) {
+            throw new IllegalArgumentException("buckets, width and depth must all be at least 1");
+        }
+        this.width = width;
+        this.depth = depth;
+        this.bucketMillis = Math.max(1, (windowSeconds * 1000 + buckets - 1) / buckets);
+        this.clock = clock;
+        // One extra, for the bucket currently filling up
+        this.buckets = new int[buckets + 1][width * depth];
+        this.total = new int[width * depth];
+    }
+
+    /**
+     * Creates a counter whose counts are too high by no more than {@code epsilon} times
+     * the total number of events in the window, with probability at least {@code 1 - delta}.
+     *
+     * For example, epsilon = 0.0001 and delta = 0.001 gives 7 rows of 27183 counters, about
+     * 760KB per bucket.
+     */
+    public static <T> CountMinWindowCounter<T> withErrorBounds(long windowSeconds, int buckets, double epsilon, double delta) {
+        int width = (int) Math.ceil(Math.E / epsilon);
+        int depth = (int) Math.ceil(Math.log(1 / delta));
+        return new CountMinWindowCounter<>(windowSeconds, buckets, width, Math.max(1, depth));
+    }
+
+    @Override
+    public synchronized int addAndGetCountFor(T item) {
+        advanceTo(clock.millis() / bucketMillis);
+        int[] current = buckets[(int) Math.floorMod(newest, (long) buckets.length)];
+        long hash = spread(item.hashCode());
+        int min = Integer.MAX_VALUE;
+        for(int row=0; row<depth; row++) {
+            int i = row * width + column(hash, row);
+            current[i]++;
+            min = Math.min(min, ++total[i]);
+        }
+        return min;
+    }
+
+    // Clears out any buckets that have left the window
+    private void advanceTo(long bucket) {
+        if(bucket <= newest) {
+            // Includes the clock going backwards; count it in the newest bucket
+            return;
+        }
+        long expired = (newest == Long.MIN_VALUE) ? buckets.length : Math.min(bucket - newest, buckets.length);
+        if(expired >= buckets.length) {
+            for(int[] sketch : buckets) {
+                Arrays.fill(sketch, 0);
+            }
+            Arrays.fill(total, 0);
+        }
+        else {
+            for(long b = newest + 1; b <= bucket; b++) {
+                int[] sketch = buckets[(int) Math.floorMod(b, (long) buckets.length)];
+                for(int i=0; i<sketch.length; i++) {
+                    total[i] -= sketch[i];
+                }
+                Arrays.fill(sketch, 0);
+            }
+        }
+        newest = bucket;
+    }
+
+    private int column(long hash, int row) {
+        // A different hash for each row, from two halves of one 64 bit hash
+        int h = (int) hash + row * ((int) (hash >>> 32) | 1);
+        return Math.floorMod(h, width);
+    }
+
+    private static long spread(int hashCode) {
+        long h = hashCode * 0x9e3779b97f4a7c15L;
+        h ^= h >>> 32;
+        h *= 0xd6e8feb86659fd93L;
+        h ^= h >>> 32;
+        return h;
+    }
+}
@@ -0,0 +1,20 @@
+package ca.lavers.joa.middleware.util;
+
+/**
+ * A collection whose items are dropped once they haven't been added for a fixed time
+ *
+ * @param <E> The type of item
+ */
+public interface ExpiringCollection<E> {
+
+    /**
+     * Adds the item, or if it's already present, restarts its time
+     */
+    void add(E item);
+
+    /**
+     * True if the item has been added, and not expired since
+     */
+    boolean contains(E item);
+
+}
@@ -1,51 +1,177 @@
 package ca.lavers.joa.middleware.util;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.time.Clock;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
-public class ExpiringSet<E> {
+/**
+ * A set whose items are removed once they haven't been added for a fixed time.
+ *
+ * Lookups only check the expiry of the item looked up, and take no locks. Expired
+ * items are reclaimed in batches instead: as every item lives for the same time,
+ * items expire in the order they were last added, so they are queued in that order,
+ * grouped into buckets of a fraction of the expiry time. Whenever the oldest bucket
+ * has passed, whichever thread notices reclaims it. An item that is added again is
+ * only queued again once it moves into a later bucket, so the queue stays bounded
+ * by the number of items times the number of buckets.
+ */
+public class ExpiringSet<E> implements ExpiringCollection<E>, Snapshottable<E> {
+
+    // Expiry time is divided into this many buckets
+    private static final int BUCKETS = 64;
 
     private final long expirationMillis;
-    private final Map<E, Entry<E>> entries = new HashMap<>();
+    private final long bucketMillis;
+    private final Map<E, Entry<E>> entries = new ConcurrentHashMap<>();
+    private final Queue<Expiry<E>> expiries = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock reclaiming = new ReentrantLock();
     private final Clock clock;
 
     public ExpiringSet(long expirationSeconds) {
-        this.expirationMillis = expirationSeconds * 1000;
-        clock = Clock.systemUTC();
+        this(expirationSeconds, Clock.systemUTC());
     }
 
     ExpiringSet(long expirationSeconds, Clock clock) {
         this.expirationMillis = expirationSeconds * 1000;
+        this.bucketMillis = Math.max(1, expirationMillis / BUCKETS);
         this.clock = clock;
     }
 
-    public synchronized void add(E item) {
-        this.entries.merge(item, new Entry<>(item, clock.millis()), (a, b) -> {
-            a.time = Math.max(a.time, b.time);
-            return a;
-        });
+    @Override
+    public void add(E item) {
+        final long now = clock.millis();
+        addAt(item, now);
+        reclaim(now);
     }
 
-    public synchronized boolean contains(E item) {
-        // TODO - don't tidy every time; just check the expiry on the found item
-        tidy();
-        return this.entries.containsKey(item);
+    private void addAt(E item, long now) {
+        while(true) {
+            Entry<E> entry = entries.computeIfAbsent(item, Entry::new);
+            synchronized(entry) {
+                if(entry.removed) {
+                    // Reclaimed in the meantime; start over with a new one
+                    continue;
+                }
+                entry.time = Math.max(entry.time, now);
+                long bucket = (entry.time + expirationMillis) / bucketMillis;
+                if(bucket != entry.bucket) {
+                    entry.bucket = bucket;
+                    expiries.add(new Expiry<>(entry, bucket));
+                }
+            }
+            break;
+        }
     }
 
-    // TODO -- make public and require user to periodically tidy the list
-    private void tidy() {
+    @Override
+    public boolean contains(E item) {
         final long now = clock.millis();
-        this.entries.values().removeIf(entry -> now - entry.time > expirationMillis);
+        reclaim(now);
+        final Entry<E> entry = entries.get(item);
+        return entry != null && now - entry.time <= expirationMillis;
+    }
+
+    @Override
+    public void writeSnapshot(DataOutput out, Function<? super E, String> encoder) throws IOException {
+        final long now = clock.millis();
+        List<Entry<E>> live = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+        for(Entry<E> entry : entries.values()) {
+            long time = entry.time;
+            if(now - time <= expirationMillis) {
+                live.add(entry);
+                times.add(time);
+            }
+        }
+        out.writeInt(live.size());
+        for(int i=0; i<live.size(); i++) {
+            out.writeUTF(encoder.apply(live.get(i).item));
+            out.writeLong(times.get(i));
+        }
+    }
+
+    @Override
+    public void readSnapshot(DataInput in, Function<String, ? extends E> decoder) throws IOException {
+        final long now = clock.millis();
+        int count = in.readInt();
+        List<Entry<E>> live = new ArrayList<>();
+        for(int i=0; i<count; i++) {
+            Entry<E> entry = new Entry<>(decoder.apply(in.readUTF()));
+            entry.time = in.readLong();
+            if(now - entry.time <= expirationMillis) {
+                live.add(entry);
+            }
+        }
+        // Oldest first, so that they're queued in the order they expire
+        live.sort(Comparator.comparingLong(entry -> entry.time));
+        for(Entry<E> entry : live) {
+            addAt(entry.item, entry.time);
+        }
+        reclaim(now);
+    }
+
+    /**
+     * The number of items held, including any that have expired but not yet been reclaimed
+     */
+    int size() {
+        return entries.size();
+    }
+
+    // Reclaims every bucket that has passed, unless another thread is already at it
+    private void reclaim(long now) {
+        Expiry<E> next = expiries.peek();
+        if(next == null || next.bucket >= now / bucketMillis || !reclaiming.tryLock()) {
+            return;
+        }
+        try {
+            long current = now / bucketMillis;
+            while((next = expiries.peek()) != null && next.bucket < current) {
+                expiries.poll();
+                Entry<E> entry = next.entry;
+                synchronized(entry) {
+                    // Otherwise it was added again since, and is queued in a later bucket
+                    if(entry.bucket == next.bucket && !entry.removed && now - entry.time > expirationMillis) {
+                        entry.removed = true;
+                        entries.remove(entry.item, entry);
+                    }
+                }
+            }
+        }
+        finally {
+            reclaiming.unlock();
+        }
     }
 
     private static class Entry<E> {
         final E item;
-        long time;
+        // Guarded by this; time is volatile so that lookups can read it without locking.
+        // Starts out long expired, in case it's looked up before being added.
+        volatile long time = 0;
+        long bucket = Long.MIN_VALUE;
+        boolean removed = false;
 
-        public Entry(E item, long time) {
+        Entry(E item) {
             this.item = item;
-            this.time = time;
+        }
+    }
+
+    private static class Expiry<E> {
+        final Entry<E> entry;
+        final long bucket;
+
+        Expiry(Entry<E> entry, long bucket) {
+            this.entry = entry;
+            this.bucket = bucket;
         }
     }
 }
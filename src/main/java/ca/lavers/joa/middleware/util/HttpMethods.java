@@ -0,0 +1,65 @@
+package ca.lavers.joa.middleware.util;
+
+/**
+ * Maps the standard HTTP methods to small integer slots, so that per-method
+ * data can be kept in an array rather than looked up by name.
+ *
+ * Methods other than these have no slot ({@link #OTHER}), and need to be
+ * handled some other way (e.g. a fallback map).
+ */
+public final class HttpMethods {
+
+    public static final int GET = 0;
+    public static final int POST = 1;
+    public static final int PUT = 2;
+    public static final int DELETE = 3;
+    public static final int PATCH = 4;
+    public static final int HEAD = 5;
+    public static final int OPTIONS = 6;
+
+    /**
+     * The number of slots
+     */
+    public static final int COUNT = 7;
+
+    /**
+     * Slot number of any non-standard method
+     */
+    public static final int OTHER = -1;
+
+    private static final String[] NAMES = {"GET", "POST", "PUT", "DELETE", "PATCH", "HEAD", "OPTIONS"};
+
+    private HttpMethods() {
+    }
+
+    /**
+     * Returns the slot for the given method name, or {@link #OTHER} if it is
+     * not one of the standard methods. Method names are case-sensitive.
+     */
+    public static int slot(String method) {
+        // Servers usually hand us the interned constants, in which case this
+        // avoids looking at the characters at all
+        for(int i=0; i<COUNT; i++) {
+            if(method == NAMES[i]) {
+                return i;
+            }
+        }
+        switch(method) {
+            case "GET": return GET;
+            case "POST": return POST;
+            case "PUT": return PUT;
+            case "DELETE": return DELETE;
+            case "PATCH": return PATCH;
+            case "HEAD": return HEAD;
+            case "OPTIONS": return OPTIONS;
+            default: return OTHER;
+        }
+    }
+
+    /**
+     * Returns the method name for the given slot
+     */
+    public static String name(int slot) {
+        return NAMES[slot];
+    }
+}
@@ -0,0 +1,198 @@
+package ca.lavers.joa.middleware.util;
+
+/**
+ * Parses textual IP addresses into a pair of longs, without allocating.
+ *
+ * Every address is treated as 128 bits: IPv6 addresses as they are, and IPv4
+ * addresses in their IPv4-mapped IPv6 form ({@code ::ffff:a.b.c.d}), so both
+ * can be kept in the same table and an IPv4 address is equal to its mapped form.
+ */
+public final class IpAddress {
+
+    /**
+     * The high 64 bits of every IPv4-mapped address
+     */
+    public static final long IPV4_HIGH = 0L;
+
+    /**
+     * The bits above the IPv4 address in the low 64 bits of every IPv4-mapped address
+     */
+    public static final long IPV4_LOW_PREFIX = 0xffffL << 32;
+
+    private IpAddress() {
+    }
+
+    /**
+     * Parses an IPv4 or IPv6 address, storing the high 64 bits in out[0] and the low
+     * 64 bits in out[1]. An IPv6 zone (e.g. {@code %eth0}) is ignored.
+     *
+     * @return false if s isn't an IP address, in which case out is left in an unknown state
+     */
+    public static boolean parse(String s, long[] out) {
+        if(s == null || s.isEmpty()) {
+            return false;
+        }
+        int end = s.indexOf('%');
+        if(end < 0) {
+            end = s.length();
+        }
+        if(s.indexOf(':') < 0) {
+            long v4 = parseIpv4(s, 0, end);
+            if(v4 < 0) {
+                return false;
+            }
+            out[0] = IPV4_HIGH;
+            out[1] = IPV4_LOW_PREFIX | v4;
+            return true;
+        }
+        return parseIpv6(s, end, out);
+    }
+
+    /**
+     * True if the address (as parsed by {@link #parse(String, long[])}) is an IPv4 address
+     */
+    public static boolean isIpv4(long high, long low) {
+        return high == IPV4_HIGH && (low & 0xffffffff00000000L) == IPV4_LOW_PREFIX;
+    }
+
+    // The address as an unsigned 32 bit value, or -1 if it isn't one
+    private static long parseIpv4(String s, int start, int end) {
+        long result = 0;
+        int parts = 0;
+        int i = start;
+        while(true) {
+            int digits = 0;
+            int part = 0;
+            while(i < end && digits < 4) {
+                char c = s.charAt(i);
+                if(c < '0' || c > '9') {
+                    break;
+                }
+                part = part * 10 + (c - '0');
+                digits++;
+                i++;
+            }
+            if(digits == 0 || digits > 3 || part > 255) {
+                return -1;
+            }
+            result = (result << 8) | part;
+            parts++;
+            if(i == end) {
+                return (parts == 4) ? result : -1;
+            }
+            if(parts == 4 || s.charAt(i) != '.') {
+                return -1;
+            }
+            i++;
+        }
+    }
+
+    private static boolean parseIpv6(String s, int end, long[] out) {
+        // Groups before and after the "::", if any, each shifted in from the right
+        long headHigh = 0, headLow = 0, tailHigh = 0, tailLow = 0;
+        int headCount = 0, tailCount = 0;
+        boolean compressed = false;
+
+        int i = 0;
+        if(s.startsWith("::")) {
+            compressed = true;
+            i = 2;
+        }
+        while(i < end) {
+            int groupStart = i;
+            int group = 0;
+            while(i < end && i - groupStart < 5) {
+                int digit = Character.digit(s.charAt(i), 16);
+                if(digit < 0) {
+                    break;
+                }
+                group = (group << 4) | digit;
+                i++;
+            }
+            int digits = i - groupStart;
+
+            int groups;
+            long value;
+            if(i < end && s.charAt(i) == '.') {
+                // Embedded IPv4 address, as the last two groups
+                long v4 = parseIpv4(s, groupStart, end);
+                if(v4 < 0) {
+                    return false;
+                }
+                i = end;
+                groups = 2;
+                value = v4;
+            }
+            else {
+                if(digits == 0 || digits > 4) {
+                    return false;
+                }
+                groups = 1;
+                value = group;
+            }
+
+            if(compressed) {
+                tailHigh = (tailHigh << (16 * groups)) | (tailLow >>> (64 - 16 * groups));
+                tailLow = (tailLow << (16 * groups)) | value;
+                tailCount += groups;
+            }
+            else {
+                headHigh = (headHigh << (16 * groups)) | (headLow >>> (64 - 16 * groups));
+                headLow = (headLow << (16 * groups)) | value;
+                headCount += groups;
+            }
+            if(headCount + tailCount > 8) {
+                return false;
+            }
+
+            if(i == end) {
+                break;
+            }
+            if(s.charAt(i) != ':') {
+                return false;
+            }
+            i++;
+            if(i < end && s.charAt(i) == ':') {
+                if(compressed) {
+                    return false;
+                }
+                compressed = true;
+                i++;
+            }
+            else if(i == end) {
+                // Trailing single ':'
+                return false;
+            }
+        }
+
+        if(!compressed) {
+            if(headCount != 8) {
+                return false;
+            }
+            out[0] = headHigh;
+            out[1] = headLow;
+            return true;
+        }
+        if(headCount + tailCount > 7) {
+            return false;
+        }
+        // Move the head groups up past the ones the "::" stands for
+        int shift = 16 * (8 - headCount);
+        long high, low;
+        if(headCount == 0) {
+            high = 0;
+            low = 0;
+        }
+        else if(shift >= 64) {
+            high = headLow << (shift - 64);
+            low = 0;
+        }
+        else {
+            high = (headHigh << shift) | (headLow >>> (64 - shift));
+            low = headLow << shift;
+        }
+        out[0] = high | tailHigh;
+        out[1] = low | tailLow;
+        return true;
+    }
+}
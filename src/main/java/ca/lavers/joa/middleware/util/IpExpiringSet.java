@@ -0,0 +1,95 @@
+package ca.lavers.joa.middleware.util;
+
+import java.nio.ByteBuffer;
+import java.time.Clock;
+
+/**
+ * An {@link ExpiringCollection} of IP address strings, kept as primitive slots in a
+ * table (see {@link IpTable}) rather than as objects: 32 bytes per address, optionally
+ * outside the Java heap. Anything that isn't an IP address is kept in an ordinary
+ * {@link ExpiringSet} instead.
+ *
+ * Expired addresses are dropped when their part of the table fills up.
+ */
+public class IpExpiringSet implements ExpiringCollection<String> {
+
+    // Last time the address was added, in millis
+    private static final int TIME = IpTable.DATA;
+
+    private static final ThreadLocal<long[]> ADDRESS = ThreadLocal.withInitial(() -> new long[2]);
+
+    private final long expirationMillis;
+    private final Clock clock;
+    private final Table table;
+    private final ExpiringSet<String> others;
+
+    /**
+     * @param expirationSeconds How long an address stays in the set after it was last added
+     */
+    public IpExpiringSet(long expirationSeconds) {
+        this(expirationSeconds, false);
+    }
+
+    /**
+     * @param expirationSeconds How long an address stays in the set after it was last added
+     * @param offHeap Whether to keep the table in direct buffers, outside the Java heap
+     */
+    public IpExpiringSet(long expirationSeconds, boolean offHeap) {
+        this(expirationSeconds, offHeap, Clock.systemUTC());
+    }
+
+    IpExpiringSet(long expirationSeconds, boolean offHeap, Clock clock) {
+        this.expirationMillis = expirationSeconds * 1000;
+        this.clock = clock;
+        this.table = new Table(offHeap);
+        this.others = new ExpiringSet<>(expirationSeconds, clock);
+    }
+
+    @Override
+    public void add(String ip) {
+        long[] address = ADDRESS.get();
+        if(!IpAddress.parse(ip, address)) {
+            others.add(ip);
+            return;
+        }
+        long now = clock.millis();
+        IpTable.Segment segment = table.segmentFor(address[0], address[1]);
+        synchronized(segment) {
+            int offset = segment.findOrAdd(address[0], address[1], now);
+            ByteBuffer slots = segment.table();
+            slots.putLong(offset + TIME, Math.max(slots.getLong(offset + TIME), now));
+        }
+    }
+
+    @Override
+    public boolean contains(String ip) {
+        long[] address = ADDRESS.get();
+        if(!IpAddress.parse(ip, address)) {
+            return others.contains(ip);
+        }
+        long now = clock.millis();
+        IpTable.Segment segment = table.segmentFor(address[0], address[1]);
+        synchronized(segment) {
+            int offset = segment.find(address[0], address[1]);
+            return offset >= 0 && now - segment.table().getLong(offset + TIME) <= expirationMillis;
+        }
+    }
+
+    /**
+     * The number of IP addresses held, including any that have expired but not yet been dropped
+     */
+    int size() {
+        return table.size();
+    }
+
+    private class Table extends IpTable {
+        Table(boolean direct) {
+            super(8, direct);
+        }
+
+        @Override
+        boolean isLive(ByteBuffer table, int offset, long now) {
+            return now - table.getLong(offset + TIME) <= expirationMillis;
+        }
+    }
+}
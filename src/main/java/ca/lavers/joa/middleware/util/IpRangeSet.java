@@ -0,0 +1,174 @@
+package ca.lavers.joa.middleware.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An immutable set of IP address ranges, given in CIDR notation (e.g. {@code 10.0.0.0/8},
+ * {@code 2001:db8::/32}, or a single address), for IPv4 and IPv6 alike.
+ *
+ * The ranges are compiled into a sorted array of non-overlapping intervals over the
+ * 128 bit address space (with IPv4 addresses mapped into it as by {@link IpAddress}), so
+ * a lookup is a binary search over primitive arrays, and allocates nothing.
+ */
+public final class IpRangeSet {
+
+    private static final ThreadLocal<long[]> ADDRESS = ThreadLocal.withInitial(() -> new long[2]);
+
+    private static final IpRangeSet EMPTY = new IpRangeSet(new long[0], new long[0], new long[0], new long[0]);
+
+    // Inclusive bounds of each interval, in ascending order
+    private final long[] startHigh;
+    private final long[] startLow;
+    private final long[] endHigh;
+    private final long[] endLow;
+
+    private IpRangeSet(long[] startHigh, long[] startLow, long[] endHigh, long[] endLow) {
+        this.startHigh = startHigh;
+        this.startLow = startLow;
+        this.endHigh = endHigh;
+        this.endLow = endLow;
+    }
+
+    /**
+     * A set containing no addresses
+     */
+    public static IpRangeSet empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @throws IllegalArgumentException if any of the ranges isn't valid CIDR notation
+     */
+    public static IpRangeSet of(String... ranges) {
+        return of(Arrays.asList(ranges));
+    }
+
+    /**
+     * @throws IllegalArgumentException if any of the ranges isn't valid CIDR notation
+     */
+    public static IpRangeSet of(Collection<String> ranges) {
+        List<long[]> intervals = new ArrayList<>(ranges.size());
+        for(String range : ranges) {
+            intervals.add(parse(range.trim()));
+        }
+        intervals.sort((a, b) -> compare(a[0], a[1], b[0], b[1]));
+
+        // Merge overlapping and adjacent intervals
+        List<long[]> merged = new ArrayList<>();
+        for(long[] interval : intervals) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if(last != null && adjacentOrOverlapping(last, interval)) {
+                if(compare(interval[2], interval[3], last[2], last[3]) > 0) {
+                    last[2] = interval[2];
+                    last[3] = interval[3];
+                }
+            }
+            else {
+                merged.add(interval);
+            }
+        }
+
+        int n = merged.size();
+        long[] startHigh = new long[n], startLow = new long[n], endHigh = new long[n], endLow = new long[n];
+        for(int i=0; i<n; i++) {
+            long[] interval = merged.get(i);
+            startHigh[i] = interval[0];
+            startLow[i] = interval[1];
+            endHigh[i] = interval[2];
+            endLow[i] = interval[3];
+        }
+        return new IpRangeSet(startHigh, startLow, endHigh, endLow);
+    }
+
+    /**
+     * True if the given address is in one of the ranges; false if not, or if it isn't
+     * an IP address at all
+     */
+    public boolean contains(String ip) {
+        if(startHigh.length == 0) {
+            return false;
+        }
+        long[] address = ADDRESS.get();
+        return IpAddress.parse(ip, address) && contains(address[0], address[1]);
+    }
+
+    /**
+     * True if the given address (as parsed by {@link IpAddress}) is in one of the ranges
+     */
+    public boolean contains(long high, long low) {
+        // The last interval starting at or before the address
+        int lo = 0, hi = startHigh.length - 1, found = -1;
+        while(lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if(compare(startHigh[mid], startLow[mid], high, low) <= 0) {
+                found = mid;
+                lo = mid + 1;
+            }
+            else {
+                hi = mid - 1;
+            }
+        }
+        return found >= 0 && compare(high, low, endHigh[found], endLow[found]) <= 0;
+    }
+
+    /**
+     * The number of separate intervals the ranges were compiled into
+     */
+    public int intervals() {
+        return startHigh.length;
+    }
+
+    // {startHigh, startLow, endHigh, endLow}
+    private static long[] parse(String range) {
+        int slash = range.indexOf('/');
+        String ip = (slash < 0) ? range : range.substring(0, slash);
+        long[] address = new long[2];
+        if(!IpAddress.parse(ip, address) || ip.indexOf('%') >= 0) {
+            throw new IllegalArgumentException("Invalid IP range: " + range);
+        }
+        boolean ipv4 = ip.indexOf(':') < 0;
+        int bits = ipv4 ? 32 : 128;
+        int prefix = bits;
+        if(slash >= 0) {
+            try {
+                prefix = Integer.parseInt(range.substring(slash + 1));
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid IP range: " + range);
+            }
+            if(prefix < 0 || prefix > bits) {
+                throw new IllegalArgumentException("Invalid IP range: " + range);
+            }
+        }
+        if(ipv4) {
+            prefix += 96;
+        }
+        // Host bits, which are cleared in the start and set in the end
+        long maskHigh = (prefix >= 64) ? 0 : (-1L >>> prefix);
+        long maskLow = (prefix >= 128) ? 0 : (prefix <= 64 ? -1L : (-1L >>> (prefix - 64)));
+        return new long[] {address[0] & ~maskHigh, address[1] & ~maskLow, address[0] | maskHigh, address[1] | maskLow};
+    }
+
+    // True if b starts no later than one past the end of a; a starts no later than b
+    private static boolean adjacentOrOverlapping(long[] a, long[] b) {
+        if(compare(b[0], b[1], a[2], a[3]) <= 0) {
+            return true;
+        }
+        // One past the end of a, unless a runs to the very end of the address space
+        long nextLow = a[3] + 1;
+        long nextHigh = (nextLow == 0) ? a[2] + 1 : a[2];
+        if(nextLow == 0 && nextHigh == 0) {
+            return true;
+        }
+        return b[0] == nextHigh && b[1] == nextLow;
+    }
+
+    // Compares two 128 bit addresses as unsigned numbers
+    private static int compare(long aHigh, long aLow, long bHigh, long bLow) {
+        int c = Long.compareUnsigned(aHigh, bHigh);
+        return (c != 0) ? c : Long.compareUnsigned(aLow, bLow);
+    }
+}
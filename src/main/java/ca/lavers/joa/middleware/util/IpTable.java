@@ -0,0 +1,180 @@
+package ca.lavers.joa.middleware.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Base for hash tables keyed on IP addresses (as parsed by {@link IpAddress}), that keep
+ * each entry as a fixed-size slot of primitive fields in a ByteBuffer, optionally a
+ * direct one outside the Java heap. There are no objects per entry at all, so millions
+ * of addresses cost the garbage collector nothing.
+ *
+ * Slots are found by linear probing. The table is split into independently locked
+ * segments; subclasses lock the segment returned by {@link #segmentFor(long, long)}
+ * while they work on its slots. Entries are only ever removed when a segment fills up,
+ * at which point those that are no longer live (see {@link #isLive(ByteBuffer, int, long)})
+ * are dropped, and the segment only grows if that didn't free enough room.
+ *
+ * Each slot starts with a header: an int that is non-zero if the slot is in use at
+ * {@link #USED}, then the address at {@link #HIGH} and {@link #LOW}. Subclass fields start
+ * at {@link #DATA}, and are all zero in a newly added entry.
+ */
+abstract class IpTable {
+
+    static final int USED = 0;
+    static final int HIGH = 8;
+    static final int LOW = 16;
+    static final int DATA = 24;
+
+    private static final int SEGMENTS = 16;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final int slotSize;
+    private final boolean direct;
+
+    /**
+     * @param dataSize The size in bytes of the subclass's fields in each slot
+     * @param direct Whether to keep the table in direct buffers, outside the heap
+     */
+    IpTable(int dataSize, boolean direct) {
+        // Keeps every slot 8-byte aligned
+        this.slotSize = (DATA + dataSize + 7) & ~7;
+        this.direct = direct;
+        for(int i=0; i<SEGMENTS; i++) {
+            segments[i] = new Segment(INITIAL_CAPACITY);
+        }
+    }
+
+    /**
+     * True if the entry at the given offset should be kept when its segment fills up
+     */
+    abstract boolean isLive(ByteBuffer table, int offset, long now);
+
+    Segment segmentFor(long high, long low) {
+        return segments[(int) (hash(high, low) >>> 60) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * The number of entries held, including any that are no longer live but haven't
+     * been dropped yet
+     */
+    int size() {
+        int size = 0;
+        for(Segment segment : segments) {
+            synchronized(segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    private static long hash(long high, long low) {
+        long h = high * 0x9e3779b97f4a7c15L ^ low;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * One independently locked part of the table. All methods must be called with it locked.
+     */
+    final class Segment {
+        private ByteBuffer table;
+        private int capacity;
+        private int size = 0;
+
+        private Segment(int capacity) {
+            this.capacity = capacity;
+            this.table = allocate(capacity);
+        }
+
+        /**
+         * The buffer holding this segment's slots; only valid until the next {@link #findOrAdd}
+         */
+        ByteBuffer table() {
+            return table;
+        }
+
+        /**
+         * The offset of the address's slot, or -1 if it isn't present
+         */
+        int find(long high, long low) {
+            int mask = capacity - 1;
+            for(int i = (int) hash(high, low) & mask; ; i = (i + 1) & mask) {
+                int offset = i * slotSize;
+                if(table.getInt(offset + USED) == 0) {
+                    return -1;
+                }
+                if(table.getLong(offset + HIGH) == high && table.getLong(offset + LOW) == low) {
+                    return offset;
+                }
+            }
+        }
+
+        /**
+         * The offset of the address's slot, adding one with all zero fields if it isn't present
+         */
+        int findOrAdd(long high, long low, long now) {
+            int offset = find(high, low);
+            if(offset >= 0) {
+                return offset;
+            }
+            if((size + 1) * 2 > capacity) {
+                rebuild(now);
+            }
+            offset = insert(table, capacity, high, low);
+            size++;
+            return offset;
+        }
+
+        // Drops entries that aren't live, and grows if still more than half full
+        private void rebuild(long now) {
+            int live = 0;
+            for(int i=0; i<capacity; i++) {
+                int offset = i * slotSize;
+                if(table.getInt(offset + USED) != 0 && isLive(table, offset, now)) {
+                    live++;
+                }
+            }
+            int newCapacity = capacity;
+            while((live + 1) * 2 > newCapacity) {
+                newCapacity *= 2;
+            }
+            ByteBuffer newTable = allocate(newCapacity);
+            for(int i=0; i<capacity; i++) {
+                int offset = i * slotSize;
+                if(table.getInt(offset + USED) != 0 && isLive(table, offset, now)) {
+                    int newOffset = insert(newTable, newCapacity, table.getLong(offset + HIGH), table.getLong(offset + LOW));
+                    for(int field = DATA; field < slotSize; field += 8) {
+                        newTable.putLong(newOffset + field, table.getLong(offset + field));
+                    }
+                }
+            }
+            table = newTable;
+            capacity = newCapacity;
+            size = live;
+        }
+
+        private int insert(ByteBuffer table, int capacity, long high, long low) {
+            int mask = capacity - 1;
+            int i = (int) hash(high, low) & mask;
+            while(table.getInt(i * slotSize + USED) != 0) {
+                i = (i + 1) & mask;
+            }
+            int offset = i * slotSize;
+            table.putInt(offset + USED, 1);
+            table.putLong(offset + HIGH, high);
+            table.putLong(offset + LOW, low);
+            return offset;
+        }
+
+        private ByteBuffer allocate(int capacity) {
+            int bytes = Math.multiplyExact(capacity, slotSize);
+            // Both kinds start out zeroed
+            return direct ? ByteBuffer.allocateDirect(bytes) : ByteBuffer.allocate(bytes);
+        }
+    }
+}
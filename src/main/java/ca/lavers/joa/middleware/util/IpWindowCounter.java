@@ -0,0 +1,118 @@
+package ca.lavers.joa.middleware.util;
+
+import java.nio.ByteBuffer;
+import java.time.Clock;
+
+/**
+ * A {@link WindowCounter} for IP address strings, counting in fixed time buckets like
+ * {@link BucketedWindowCounter}, but with each address's ring of counters kept as
+ * primitive slots in a table (see {@link IpTable}) rather than as objects, optionally
+ * outside the Java heap. Anything that isn't an IP address is counted by an ordinary
+ * {@link BucketedWindowCounter} instead.
+ *
+ * Each address takes 40 bytes plus 4 per bucket. Addresses with no events left in the
+ * window are dropped when their part of the table fills up.
+ */
+public class IpWindowCounter implements WindowCounter<String> {
+
+    // Number of the newest bucket counted, the total of all counts, then the counts
+    // indexed by bucket number modulo the number of buckets
+    private static final int NEWEST = IpTable.DATA;
+    private static final int TOTAL = NEWEST + 8;
+    private static final int COUNTS = TOTAL + 4;
+
+    private static final ThreadLocal<long[]> ADDRESS = ThreadLocal.withInitial(() -> new long[2]);
+
+    private final long bucketMillis;
+    private final int buckets;
+    private final Clock clock;
+    private final Table table;
+    private final BucketedWindowCounter<String> others;
+
+    /**
+     * @param windowSeconds How long events are counted for
+     * @param buckets How many buckets to divide the window into
+     */
+    public IpWindowCounter(long windowSeconds, int buckets) {
+        this(windowSeconds, buckets, false);
+    }
+
+    /**
+     * @param windowSeconds How long events are counted for
+     * @param buckets How many buckets to divide the window into
+     * @param offHeap Whether to keep the table in direct buffers, outside the Java heap
+     */
+    public IpWindowCounter(long windowSeconds, int buckets, boolean offHeap) {
+        this(windowSeconds, buckets, offHeap, Clock.systemUTC());
+    }
+
+    IpWindowCounter(long windowSeconds, int buckets, boolean offHeap, Clock clock) {
+        if(buckets < 1) {
+            throw new IllegalArgumentException("buckets must be at least 1");
+        }
+        // Same bucketing as BucketedWindowCounter
+        this.bucketMillis = Math.max(1, (windowSeconds * 1000 + buckets - 1) / buckets);
+        this.buckets = buckets + 1;
+        this.clock = clock;
+        this.table = new Table(offHeap);
+        this.others = new BucketedWindowCounter<>(windowSeconds, buckets, clock);
+    }
+
+    @Override
+    public int addAndGetCountFor(String ip) {
+        long[] address = ADDRESS.get();
+        if(!IpAddress.parse(ip, address)) {
+            return others.addAndGetCountFor(ip);
+        }
+        long now = clock.millis();
+        long bucket = now / bucketMillis;
+        IpTable.Segment segment = table.segmentFor(address[0], address[1]);
+        synchronized(segment) {
+            int offset = segment.findOrAdd(address[0], address[1], now);
+            ByteBuffer slots = segment.table();
+            long newest = slots.getLong(offset + NEWEST);
+            int total = slots.getInt(offset + TOTAL);
+            if(bucket > newest) {
+                if(bucket - newest >= buckets) {
+                    for(int i=0; i<buckets; i++) {
+                        slots.putInt(offset + COUNTS + i * 4, 0);
+                    }
+                    total = 0;
+                }
+                else {
+                    for(long b = newest + 1; b <= bucket; b++) {
+                        int count = offset + COUNTS + (int) (b % buckets) * 4;
+                        total -= slots.getInt(count);
+                        slots.putInt(count, 0);
+                    }
+                }
+                newest = bucket;
+                slots.putLong(offset + NEWEST, newest);
+            }
+            // If the clock went backwards, count it in the newest bucket
+            int count = offset + COUNTS + (int) (newest % buckets) * 4;
+            slots.putInt(count, slots.getInt(count) + 1);
+            slots.putInt(offset + TOTAL, ++total);
+            return total;
+        }
+    }
+
+    /**
+     * The number of IP addresses held, including any with nothing left in the window
+     * that haven't been dropped yet
+     */
+    int size() {
+        return table.size();
+    }
+
+    private class Table extends IpTable {
+        Table(boolean direct) {
+            super(COUNTS - DATA + 4 * buckets, direct);
+        }
+
+        @Override
+        boolean isLive(ByteBuffer table, int offset, long now) {
+            return now / bucketMillis - table.getLong(offset + NEWEST) < buckets;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package ca.lavers.joa.middleware.util;
+
+import java.util.*;
+
+/**
+ * A fixed set of strings, compiled up front so that looking one up never
+ * collides and allocates nothing.
+ *
+ * Uses "hash and displace": keys are first hashed into buckets, then each
+ * bucket is given a seed (found by trial when building) that moves its keys
+ * into slots no other key uses. A lookup is therefore one pass over the
+ * characters of the string (which String caches), two cheap mixes of the
+ * result, and one comparison against the only key that could be in its slot.
+ */
+public final class PerfectHash {
+
+    // Keys in the order given, so callers can keep values in a parallel array
+    private final String[] keys;
+
+    // For each bucket: seed for the second hash if > 0, -(slot + 1) if the bucket
+    // has a single key placed directly, or 0 if empty
+    private final int[] seeds;
+
+    // Slot -> index in keys, or -1
+    private final int[] slots;
+
+    // True if two keys have the same String.hashCode(), in which case that can't
+    // tell them apart and the characters have to be hashed with each seed
+    private final boolean charHash;
+
+    private PerfectHash(String[] keys, int[] seeds, int[] slots, boolean charHash) {
+        this.keys = keys;
+        this.seeds = seeds;
+        this.slots = slots;
+        this.charHash = charHash;
+    }
+
+    /**
+     * Builds a table of the given keys, which must be distinct
+     *
+     * @throws IllegalArgumentException if a key appears more than once
+     */
+    public static PerfectHash of(String... keys) {
+        if(new HashSet<>(Arrays.asList(keys)).size() != keys.length) {
+            throw new IllegalArgumentException("Keys must be distinct");
+        }
+        keys = keys.clone();
+        Set<Integer> hashCodes = new HashSet<>();
+        boolean charHash = false;
+        for(String key : keys) {
+            charHash |= !hashCodes.add(key.hashCode());
+        }
+        int size = Integer.highestOneBit(Math.max(keys.length, 1) * 2 - 1);
+        while(true) {
+            PerfectHash table = build(keys, size, charHash);
+            if(table != null) {
+                return table;
+            }
+            // Couldn't place every bucket; unlikely, but a roomier table will do it
+            size *= 2;
+        }
+    }
+
+    private static PerfectHash build(String[] keys, int size, boolean charHash) {
+        int mask = size - 1;
+        List<List<Integer>> buckets = new ArrayList<>(size);
+        for(int i=0; i<size; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        for(int i=0; i<keys.length; i++) {
+            buckets.get(hash(keys[i], 0, charHash) & mask).add(i);
+        }
+
+        // Place the largest buckets first, while there's the most room
+        Integer[] order = new Integer[size];
+        for(int i=0; i<size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> buckets.get(b).size() - buckets.get(a).size());
+
+        int[] seeds = new int[size];
+        int[] slots = new int[size];
+        Arrays.fill(slots, -1);
+        int[] placed = new int[size];
+        int nextFree = 0;
+        for(int b : order) {
+            List<Integer> bucket = buckets.get(b);
+            if(bucket.isEmpty()) {
+                break;
+            }
+            if(bucket.size() == 1) {
+                while(slots[nextFree] >= 0) {
+                    nextFree++;
+                }
+                slots[nextFree] = bucket.get(0);
+                seeds[b] = -(nextFree + 1);
+                continue;
+            }
+
+            boolean done = false;
+            for(int seed=1; seed<=size * 16 && !done; seed++) {
+                int count = 0;
+                for(int key : bucket) {
+                    int slot = hash(keys[key], seed, charHash) & mask;
+                    if(slots[slot] >= 0 || contains(placed, count, slot)) {
+                        break;
+                    }
+                    placed[count++] = slot;
+                }
+                if(count == bucket.size()) {
+                    for(int i=0; i<count; i++) {
+                        slots[placed[i]] = bucket.get(i);
+                    }
+                    seeds[b] = seed;
+                    done = true;
+                }
+            }
+            if(!done) {
+                return null;
+            }
+        }
+        return new PerfectHash(keys, seeds, slots, charHash);
+    }
+
+    private static boolean contains(int[] values, int count, int value) {
+        for(int i=0; i<count; i++) {
+            if(values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the position of the given string in the keys this table was
+     * built with, or -1 if it isn't one of them
+     */
+    public int indexOf(String s) {
+        int mask = seeds.length - 1;
+        int seed = seeds[hash(s, 0, charHash) & mask];
+        int slot;
+        if(seed < 0) {
+            slot = -seed - 1;
+        }
+        else if(seed > 0) {
+            slot = hash(s, seed, charHash) & mask;
+        }
+        else {
+            return -1;
+        }
+        int index = slots[slot];
+        return (index >= 0 && keys[index].equals(s)) ? index : -1;
+    }
+
+    /**
+     * The number of keys in this table
+     */
+    public int size() {
+        return keys.length;
+    }
+
+    private static int hash(String s, int seed, boolean charHash) {
+        int h;
+        if(charHash) {
+            // FNV-1a, starting from the seed
+            h = 0x811c9dc5 ^ (seed * 0x9e3779b9);
+            for(int i=0; i<s.length(); i++) {
+                h = (h ^ s.charAt(i)) * 0x01000193;
+            }
+        }
+        else {
+            h = s.hashCode() ^ (seed * 0x9e3779b9);
+        }
+        // Mix so that every seed gives an unrelated distribution
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,74 @@
+package ca.lavers.joa.middleware.util;
+
+/**
+ * Open-addressing table keyed on path segments that can be probed with a
+ * region of a larger string, so lookups don't need a substring.
+ *
+ * Used by both {@link ca.lavers.joa.middleware.router.Router} and
+ * {@link ca.lavers.joa.middleware.prefixrouter.PrefixRouter}.
+ *
+ * @param <V> The type of the values
+ */
+public final class SegmentTable<V> {
+
+    private String[] keys = new String[4];
+    private Object[] values = new Object[4];
+    private int size = 0;
+
+    /**
+     * The value for the segment s[start, end), or null if there isn't one
+     */
+    @SuppressWarnings("unchecked")
+    public V get(String s, int start, int end) {
+        int mask = keys.length - 1;
+        int len = end - start;
+        for(int i = hash(s, start, end) & mask; keys[i] != null; i = (i + 1) & mask) {
+            String key = keys[i];
+            if(key.length() == len && key.regionMatches(0, s, start, len)) {
+                return (V) values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a segment, which must not already be in the table
+     */
+    public void put(String key, V value) {
+        if((size + 1) * 2 > keys.length) {
+            resize();
+        }
+        insert(keys, values, key, value);
+        size++;
+    }
+
+    private void resize() {
+        String[] newKeys = new String[keys.length * 2];
+        Object[] newValues = new Object[values.length * 2];
+        for(int i=0; i<keys.length; i++) {
+            if(keys[i] != null) {
+                insert(newKeys, newValues, keys[i], values[i]);
+            }
+        }
+        keys = newKeys;
+        values = newValues;
+    }
+
+    private static void insert(String[] keys, Object[] values, String key, Object value) {
+        int mask = keys.length - 1;
+        int i = hash(key, 0, key.length()) & mask;
+        while(keys[i] != null) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+    }
+
+    private static int hash(String s, int start, int end) {
+        int h = 0;
+        for(int i=start; i<end; i++) {
+            h = 31 * h + s.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+}
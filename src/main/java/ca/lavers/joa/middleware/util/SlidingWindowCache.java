@@ -1,12 +1,25 @@
 package ca.lavers.joa.middleware.util;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.time.Clock;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 
-public class SlidingWindowCache<T> {
+/**
+ * An exact {@link WindowCounter}, which remembers the time of every event in the window.
+ * See {@link BucketedWindowCounter} for one that takes less memory and contends less
+ * under heavy concurrent use.
+ */
+public class SlidingWindowCache<T> implements WindowCounter<T>, Snapshottable<T> {
 
     private final Deque<Entry<T>> window = new ArrayDeque<>();
     private final Map<T, Integer> counts = new HashMap<>();
@@ -24,12 +37,61 @@ public class SlidingWindowCache<T> {
         this.clock = clock;
     }
 
+    @Override
     public synchronized int addAndGetCountFor(final T item) {
         trimWindow();
         window.addFirst(new Entry<>(item, clock.millis()));
         return counts.merge(item, 1, Integer::sum);
     }
 
+    /**
+     * Each item is written once, followed by the times of its events
+     */
+    @Override
+    public void writeSnapshot(DataOutput out, Function<? super T, String> encoder) throws IOException {
+        Map<T, List<Long>> times = new LinkedHashMap<>();
+        synchronized(this) {
+            trimWindow();
+            for(Iterator<Entry<T>> it = window.descendingIterator(); it.hasNext(); ) {
+                Entry<T> entry = it.next();
+                times.computeIfAbsent(entry.item, item -> new ArrayList<>()).add(entry.time);
+            }
+        }
+        out.writeInt(times.size());
+        for(Map.Entry<T, List<Long>> item : times.entrySet()) {
+            out.writeUTF(encoder.apply(item.getKey()));
+            out.writeInt(item.getValue().size());
+            for(long time : item.getValue()) {
+                out.writeLong(time);
+            }
+        }
+    }
+
+    @Override
+    public void readSnapshot(DataInput in, Function<String, ? extends T> decoder) throws IOException {
+        final long now = clock.millis();
+        List<Entry<T>> entries = new ArrayList<>();
+        int items = in.readInt();
+        for(int i=0; i<items; i++) {
+            T item = decoder.apply(in.readUTF());
+            int count = in.readInt();
+            for(int j=0; j<count; j++) {
+                long time = in.readLong();
+                if(now - time <= windowSizeMillis) {
+                    entries.add(new Entry<>(item, time));
+                }
+            }
+        }
+        // Newest first, and older than anything counted so far, which goes at the front
+        entries.sort((a, b) -> Long.compare(b.time, a.time));
+        synchronized(this) {
+            for(Entry<T> entry : entries) {
+                window.addLast(entry);
+                counts.merge(entry.item, 1, Integer::sum);
+            }
+        }
+    }
+
     private void trimWindow() {
         final long now = clock.millis();
         while(window.size() > 0) {
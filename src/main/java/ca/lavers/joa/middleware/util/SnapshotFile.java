@@ -0,0 +1,151 @@
+package ca.lavers.joa.middleware.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A file holding snapshots of named {@link Snapshottable} collections of strings.
+ *
+ * The file is a short header followed by one length-prefixed section per collection, so
+ * sections that aren't asked for when loading are skipped over. Saving writes a new file
+ * next to the old one and renames it into place, so a crash while saving leaves the last
+ * complete snapshot behind. Loading maps the file into memory rather than reading it
+ * through a stream.
+ */
+public class SnapshotFile {
+
+    private static final int MAGIC = 0x4a4f4153; // "JOAS"
+    private static final int VERSION = 1;
+
+    private final Path path;
+
+    public SnapshotFile(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Saves the current contents of each collection, replacing the file
+     */
+    public synchronized void save(Map<String, Snapshottable<String>> sections) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // Sections are written straight to the file; each one's length isn't known
+            // until it's done, so it's filled in afterwards
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            ByteBuffer length = ByteBuffer.allocate(4);
+            for(Map.Entry<String, Snapshottable<String>> section : sections.entrySet()) {
+                out.writeUTF(section.getKey());
+                out.writeInt(0);
+                out.flush();
+                long start = channel.position();
+                section.getValue().writeSnapshot(out, Function.identity());
+                out.flush();
+                long size = channel.position() - start;
+                if(size > Integer.MAX_VALUE) {
+                    throw new IOException("Snapshot section too large: " + section.getKey());
+                }
+                length.clear();
+                length.putInt(0, (int) size);
+                long at = start - 4;
+                while(length.hasRemaining()) {
+                    at += channel.write(length, at);
+                }
+            }
+            out.flush();
+            channel.force(false);
+        }
+        try {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Loads each collection from its section of the file, if it has one
+     *
+     * @return false if there is no file yet
+     * @throws IOException if the file can't be read or isn't a complete snapshot; some
+     *         of the collections may have been loaded already
+     */
+    public boolean load(Map<String, Snapshottable<String>> sections) throws IOException {
+        if(!Files.exists(path)) {
+            return false;
+        }
+        MappedByteBuffer buffer;
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        DataInputStream in = new DataInputStream(new BufferInputStream(buffer));
+        if(buffer.remaining() < 8 || in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a snapshot file: " + path);
+        }
+        while(buffer.hasRemaining()) {
+            String name = in.readUTF();
+            int length = in.readInt();
+            if(length < 0 || length > buffer.remaining()) {
+                throw new EOFException("Truncated snapshot file: " + path);
+            }
+            int end = buffer.position() + length;
+            Snapshottable<String> target = sections.get(name);
+            if(target != null) {
+                ByteBuffer section = buffer.duplicate();
+                section.limit(end);
+                target.readSnapshot(new DataInputStream(new BufferInputStream(section)), Function.identity());
+            }
+            buffer.position(end);
+        }
+        return true;
+    }
+
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? (buffer.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if(len == 0) {
+                return 0;
+            }
+            if(!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package ca.lavers.joa.middleware.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.function.Function;
+
+/**
+ * A time-based collection whose contents can be saved, and loaded again later, e.g. by
+ * another process after a restart. Times are saved as wall clock times, so that anything
+ * that expired in between is dropped when loading.
+ *
+ * @param <T> The type of item
+ */
+public interface Snapshottable<T> {
+
+    /**
+     * Writes the current, unexpired contents
+     *
+     * @param encoder Turns an item into a string, which may be up to 65535 bytes in UTF-8
+     */
+    void writeSnapshot(DataOutput out, Function<? super T, String> encoder) throws IOException;
+
+    /**
+     * Adds the contents written by {@link #writeSnapshot(DataOutput, Function)}, except
+     * for anything that has expired since. Meant to be called before the collection is used.
+     *
+     * @param decoder Turns a string from the encoder back into an item
+     */
+    void readSnapshot(DataInput in, Function<String, ? extends T> decoder) throws IOException;
+
+}
@@ -0,0 +1,16 @@
+package ca.lavers.joa.middleware.util;
+
+/**
+ * Counts events per item over a sliding window of time
+ *
+ * @param <T> The type of item events are counted for
+ */
+public interface WindowCounter<T> {
+
+    /**
+     * Records an event for the item, and returns how many events there have been
+     * for it within the window, including this one
+     */
+    int addAndGetCountFor(T item);
+
+}
@@ -0,0 +1,171 @@
+package ca.lavers.joa.middleware;
+
+import ca.lavers.joa.core.Context;
+import ca.lavers.joa.core.Middleware;
+import ca.lavers.joa.core.MiddlewareChain;
+import ca.lavers.joa.core.Request;
+import ca.lavers.joa.core.errors.HttpException;
+import ca.lavers.joa.core.util.WrappedRequest;
+import ca.lavers.joa.middleware.errors.ForbiddenException;
+import ca.lavers.joa.middleware.util.IpRangeSet;
+import ca.lavers.joa.test.MockRequest;
+import ca.lavers.joa.test.TestResponse;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BouncerTest {
+
+    private static final String CLIENT = "198.51.100.7";
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private Bouncer bouncer() {
+        return new Bouncer(Duration.ofMinutes(1), 2, Duration.ofMinutes(10));
+    }
+
+    @Test
+    void tooManyFailuresGetsA429() {
+        Bouncer bouncer = bouncer();
+        for(int i=0; i<3; i++) {
+            assertEquals(404, send(bouncer, CLIENT, 404));
+        }
+        assertEquals(429, send(bouncer, CLIENT, 200));
+        // Other clients aren't affected
+        assertEquals(200, send(bouncer, "198.51.100.8", 200));
+        assertEquals(4, calls.get());
+    }
+
+    @Test
+    void allowedClientsAreNeverCounted() {
+        Bouncer bouncer = bouncer().withAllowList(IpRangeSet.of("198.51.100.0/24"));
+        for(int i=0; i<10; i++) {
+            assertEquals(404, send(bouncer, CLIENT, 404));
+        }
+        assertEquals(200, send(bouncer, CLIENT, 200));
+        assertEquals(11, calls.get());
+    }
+
+    @Test
+    void blockedClientsGetA403() {
+        Bouncer bouncer = bouncer().withBlockList(IpRangeSet.of("198.51.100.0/24"));
+        HttpException e = assertThrows(ForbiddenException.class,
+                () -> run(bouncer, CLIENT, 200));
+        assertEquals(403, e.getStatus());
+        assertEquals(200, send(bouncer, "203.0.113.1", 200));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void allowListBeatsBlockList() {
+        Bouncer bouncer = bouncer()
+                .withBlockList(IpRangeSet.of("198.51.100.0/24"))
+                .withAllowList(IpRangeSet.of("198.51.100.7/32"));
+        assertEquals(200, send(bouncer, CLIENT, 200));
+        assertEquals(403, send(bouncer, "198.51.100.8", 200));
+    }
+
+    @Test
+    void listsCanBeReplaced() {
+        Bouncer bouncer = bouncer().withBlockList(IpRangeSet.of("198.51.100.0/24"));
+        assertEquals(403, send(bouncer, CLIENT, 200));
+
+        bouncer.withBlockList(IpRangeSet.of("203.0.113.0/24"));
+        assertEquals(200, send(bouncer, CLIENT, 200));
+        assertEquals(403, send(bouncer, "203.0.113.1", 200));
+
+        bouncer.withAllowList(IpRangeSet.of("203.0.113.1/32"));
+        assertEquals(200, send(bouncer, "203.0.113.1", 200));
+    }
+
+    @Test
+    void naughtyClientsAreRememberedAcrossRestarts(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("bouncer.snapshot");
+        List<Exception> errors = new CopyOnWriteArrayList<>();
+        Bouncer bouncer = bouncer().withSnapshots(file, Duration.ofHours(1), errors::add);
+        for(int i=0; i<3; i++) {
+            send(bouncer, CLIENT, 404);
+        }
+        assertEquals(429, send(bouncer, CLIENT, 200));
+        assertTrue(bouncer.isSavingSnapshots());
+        bouncer.stopSnapshots();
+        assertFalse(bouncer.isSavingSnapshots());
+
+        Bouncer restarted = bouncer().withSnapshots(file, Duration.ofHours(1), errors::add);
+        assertEquals(429, send(restarted, CLIENT, 200));
+        assertEquals(200, send(restarted, "198.51.100.8", 200));
+        restarted.stopSnapshots();
+        assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    void snapshotErrorsAreReported(@TempDir Path dir) throws Exception {
+        Path corrupt = dir.resolve("corrupt.snapshot");
+        Files.write(corrupt, new byte[] {1, 2, 3});
+        List<Exception> errors = new CopyOnWriteArrayList<>();
+        Bouncer bouncer = bouncer().withSnapshots(corrupt, Duration.ofHours(1), errors::add);
+        assertEquals(1, errors.size());
+        // Replaced with a good one when saved
+        bouncer.stopSnapshots();
+        bouncer().withSnapshots(corrupt, Duration.ofHours(1), errors::add).stopSnapshots();
+        assertEquals(1, errors.size());
+
+        // Can't be saved, as its directory doesn't exist
+        Path unwritable = dir.resolve("missing").resolve("bouncer.snapshot");
+        errors.clear();
+        bouncer = bouncer().withSnapshots(unwritable, Duration.ofMillis(10), errors::add);
+        for(int i=0; i<500 && errors.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(errors.isEmpty());
+        assertThrows(IOException.class, bouncer::stopSnapshots);
+    }
+
+    // Sends a request from the given IP, answered with the given status if it gets
+    // past the Bouncer, and returns the status the client sees
+    private int send(Bouncer bouncer, String ip, int status) {
+        try {
+            return run(bouncer, ip, status).response().status();
+        }
+        catch (HttpException e) {
+            return e.getStatus();
+        }
+    }
+
+    private Context run(Bouncer bouncer, String ip, int status) {
+        Middleware handler = (ctx, next) -> {
+            calls.incrementAndGet();
+            ctx.response().body("");
+            ctx.response().status(status);
+        };
+        Context ctx = new Context(new FromIp(MockRequest.get("/"), ip), new TestResponse());
+        new MiddlewareChain(bouncer, handler).call(ctx);
+        return ctx;
+    }
+
+    private static class FromIp extends WrappedRequest {
+        private final String ip;
+
+        FromIp(Request request, String ip) {
+            super(request);
+            this.ip = ip;
+        }
+
+        @Override
+        public String remoteIp() {
+            return ip;
+        }
+    }
+}
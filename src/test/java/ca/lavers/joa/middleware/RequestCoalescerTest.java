@@ -0,0 +1,221 @@
+package ca.lavers.joa.middleware;
+
+import ca.lavers.joa.core.AbstractResponse;
+import ca.lavers.joa.core.Context;
+import ca.lavers.joa.core.Middleware;
+import ca.lavers.joa.core.MiddlewareChain;
+import ca.lavers.joa.test.MockRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RequestCoalescerTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger calls = new AtomicInteger();
+    // Holds up the first request down the chain until released
+    private final CountDownLatch leaderStarted = new CountDownLatch(1);
+    private final CountDownLatch releaseLeader = new CountDownLatch(1);
+
+    private void holdFirstCall() {
+        if(calls.incrementAndGet() == 1) {
+            leaderStarted.countDown();
+            try {
+                assertTrue(releaseLeader.await(5, TimeUnit.SECONDS));
+            }
+            catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    @AfterEach
+    void shutDown() {
+        releaseLeader.countDown();
+        executor.shutdownNow();
+    }
+
+    private final Middleware hello = (ctx, next) -> {
+        holdFirstCall();
+        respondHello(ctx);
+    };
+
+    private static void respondHello(Context ctx) {
+        ctx.response().status(203);
+        ctx.response().header("X-Test", "yes");
+        ctx.response().body("hello");
+    }
+
+    @Test
+    void followersShareTheLeadersResponse() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer();
+        CompletableFuture<Captured> leader = send("GET", coalescer, hello);
+        assertTrue(leaderStarted.await(5, TimeUnit.SECONDS));
+        List<CompletableFuture<Captured>> followers = sendFollowers(5, "GET", coalescer, hello);
+        releaseLeader.countDown();
+
+        assertHello(leader.get(5, TimeUnit.SECONDS));
+        for(CompletableFuture<Captured> follower : followers) {
+            assertHello(follower.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void otherMethodsArePassedStraightOn() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer();
+        CompletableFuture<Captured> leader = send("GET", coalescer, hello);
+        assertTrue(leaderStarted.await(5, TimeUnit.SECONDS));
+
+        // Completes while the GET is still held up
+        Captured post = send("POST", coalescer, hello).get(5, TimeUnit.SECONDS);
+        assertHello(post);
+        assertEquals(2, calls.get());
+
+        releaseLeader.countDown();
+        assertHello(leader.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void followerGivesUpAfterMaxWait() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer().withMaxWait(Duration.ofMillis(50));
+        CompletableFuture<Captured> leader = send("GET", coalescer, hello);
+        assertTrue(leaderStarted.await(5, TimeUnit.SECONDS));
+
+        // Goes down the chain itself while the leader is still held up
+        Captured follower = send("GET", coalescer, hello).get(5, TimeUnit.SECONDS);
+        assertHello(follower);
+        assertEquals(2, calls.get());
+
+        releaseLeader.countDown();
+        assertHello(leader.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void oversizedBodiesAreNotShared() throws Exception {
+        byte[] big = new byte[100000];
+        Middleware bigBody = (ctx, next) -> {
+            holdFirstCall();
+            ctx.response().status(200);
+            ctx.response().body(new ByteArrayInputStream(big));
+        };
+        RequestCoalescer coalescer = new RequestCoalescer().withMaxBufferedSize(1000);
+        CompletableFuture<Captured> leader = send("GET", coalescer, bigBody);
+        assertTrue(leaderStarted.await(5, TimeUnit.SECONDS));
+        List<CompletableFuture<Captured>> followers = sendFollowers(3, "GET", coalescer, bigBody);
+        releaseLeader.countDown();
+
+        // The leader still gets its whole body, and each follower makes its own request
+        assertEquals(big.length, leader.get(5, TimeUnit.SECONDS).bodyBytes().length);
+        for(CompletableFuture<Captured> follower : followers) {
+            assertEquals(big.length, follower.get(5, TimeUnit.SECONDS).bodyBytes().length);
+        }
+        assertEquals(4, calls.get());
+    }
+
+    @Test
+    void followersRunThemselvesWhenTheLeaderFails() throws Exception {
+        AtomicInteger failed = new AtomicInteger();
+        Middleware failFirst = (ctx, next) -> {
+            holdFirstCall();
+            if(failed.getAndIncrement() == 0) {
+                throw new IllegalStateException("Leader failed");
+            }
+            respondHello(ctx);
+        };
+        RequestCoalescer coalescer = new RequestCoalescer();
+        CompletableFuture<Captured> leader = send("GET", coalescer, failFirst);
+        assertTrue(leaderStarted.await(5, TimeUnit.SECONDS));
+        List<CompletableFuture<Captured>> followers = sendFollowers(1, "GET", coalescer, failFirst);
+        releaseLeader.countDown();
+
+        assertThrows(Exception.class, () -> leader.get(5, TimeUnit.SECONDS));
+        assertHello(followers.get(0).get(5, TimeUnit.SECONDS));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void contextAttributesReachTheRestOfTheChain() {
+        List<Object> seen = new ArrayList<>();
+        Middleware auth = (ctx, next) -> {
+            ctx.put("auth", "user", "alice");
+            next.run();
+        };
+        Middleware handler = (ctx, next) -> {
+            seen.add(ctx.get("auth", "user", String.class).orElse(null));
+            ctx.response().body("hello");
+        };
+        MockRequest.get("/thing").run(auth, new RequestCoalescer(), handler);
+        assertEquals(List.of("alice"), seen);
+    }
+
+    // Sends followers, returning once they have all reached the coalescer and had time to start waiting
+    private List<CompletableFuture<Captured>> sendFollowers(int count, String method, Middleware... chain)
+            throws InterruptedException {
+        CountDownLatch arrived = new CountDownLatch(count);
+        Middleware[] withArrival = new Middleware[chain.length + 1];
+        withArrival[0] = (ctx, next) -> {
+            arrived.countDown();
+            next.run();
+        };
+        System.arraycopy(chain, 0, withArrival, 1, chain.length);
+        List<CompletableFuture<Captured>> followers = new ArrayList<>();
+        for(int i=0; i<count; i++) {
+            followers.add(send(method, withArrival));
+        }
+        assertTrue(arrived.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertFalse(followers.stream().anyMatch(CompletableFuture::isDone));
+        return followers;
+    }
+
+    private CompletableFuture<Captured> send(String method, Middleware... chain) {
+        return CompletableFuture.supplyAsync(() -> {
+            Captured response = new Captured();
+            new MiddlewareChain(chain).call(new Context(new MockRequest(method, "/thing"), response));
+            return response;
+        }, executor);
+    }
+
+    private static void assertHello(Captured response) {
+        assertEquals(203, response.status());
+        assertEquals("yes", response.header("X-Test"));
+        assertEquals("hello", new String(response.bodyBytes(), StandardCharsets.UTF_8));
+    }
+
+    private static class Captured extends AbstractResponse {
+        String header(String name) {
+            return headers.get(name);
+        }
+
+        byte[] bodyBytes() {
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                body.transferTo(out);
+                return out.toByteArray();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package ca.lavers.joa.middleware;
+
+import ca.lavers.joa.test.MockRequest;
+import ca.lavers.joa.test.TestMiddleware;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SimpleRouterTest {
+
+    @Test
+    void frozenHit() {
+        SimpleRouter router = new SimpleRouter();
+        TestMiddleware foo = new TestMiddleware();
+        TestMiddleware postFoo = new TestMiddleware();
+        router.get("/foo", foo);
+        router.post("/foo", postFoo);
+        for(int i=0; i<100; i++) {
+            router.get("/other" + i);
+        }
+        router.freeze();
+
+        TestMiddleware next = new TestMiddleware();
+        MockRequest.get("/foo").run(router, next);
+
+        assertTrue(foo.ran());
+        assertFalse(postFoo.ran());
+        assertFalse(next.ran());
+    }
+
+    @Test
+    void frozenMissFallsThrough() {
+        SimpleRouter router = new SimpleRouter();
+        TestMiddleware foo = new TestMiddleware();
+        router.get("/foo", foo);
+        router.freeze();
+
+        // Unknown path, known path under a method with no routes, and a near miss
+        for(MockRequest request : new MockRequest[] {MockRequest.get("/bar"), new MockRequest("PUT", "/foo"),
+                                                     MockRequest.get("/foo/")}) {
+            TestMiddleware next = new TestMiddleware();
+            request.run(router, next);
+            assertTrue(next.ran());
+        }
+        assertFalse(foo.ran());
+    }
+
+    @Test
+    void frozenCustomMethod() {
+        SimpleRouter router = new SimpleRouter();
+        TestMiddleware propfind = new TestMiddleware();
+        router.addRoute("PROPFIND", "/dav", propfind);
+        router.freeze();
+
+        TestMiddleware next = new TestMiddleware();
+        new MockRequest("MKCOL", "/dav").run(router, next);
+        assertTrue(next.ran());
+        assertFalse(propfind.ran());
+
+        new MockRequest("PROPFIND", "/dav").run(router);
+        assertTrue(propfind.ran());
+    }
+
+    @Test
+    void noRoutesAddedAfterFreezing() {
+        SimpleRouter router = new SimpleRouter();
+        router.get("/foo");
+        router.freeze();
+
+        assertThrows(IllegalStateException.class, () -> router.get("/bar"));
+        assertThrows(IllegalStateException.class, () -> router.addRoute("PROPFIND", "/bar"));
+
+        TestMiddleware next = new TestMiddleware();
+        MockRequest.get("/bar").run(router, next);
+        assertTrue(next.ran());
+    }
+}
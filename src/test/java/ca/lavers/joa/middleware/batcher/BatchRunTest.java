@@ -0,0 +1,266 @@
+package ca.lavers.joa.middleware.batcher;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BatchRunTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    // How many requests are running right now, and the most there have been at once
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger maxActive = new AtomicInteger();
+
+    // Start and end of each request, in the order they happened
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+    @AfterEach
+    void shutDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void runsNoMoreThanTheConcurrencyLimit() {
+        BatchRun run = new BatchRun(counting(request -> {
+            sleep(30);
+            return ok(request.getPath());
+        }), executor, 3);
+        for(int i=0; i<10; i++) {
+            run.add(request("/" + i));
+        }
+        run.close();
+
+        List<BatchResponse> responses = run.awaitAll();
+        assertEquals(10, responses.size());
+        for(int i=0; i<10; i++) {
+            assertResponse(200, "/" + i, responses.get(i));
+        }
+        assertEquals(3, maxActive.get());
+    }
+
+    @Test
+    void sequentialRequestsRunAlone() {
+        BatchRun run = new BatchRun(recording(request -> sleep(request.getPath().equals("/a") ? 60 : 20)), executor, 4);
+        run.add(request("/a"));
+        run.add(request("/b"));
+        run.add(sequential("/s"));
+        run.add(request("/c"));
+        run.add(request("/d"));
+        run.close();
+        run.awaitAll();
+
+        // Everything before it has finished when it starts, and nothing after it starts until it ends
+        int start = events.indexOf("start /s");
+        assertTrue(events.indexOf("end /a") < start);
+        assertTrue(events.indexOf("end /b") < start);
+        assertEquals("end /s", events.get(start + 1));
+        assertTrue(events.indexOf("start /c") > start);
+        assertTrue(events.indexOf("start /d") > start);
+    }
+
+    @Test
+    void parkedRequestsDontHoldUpLaterOnes() throws Exception {
+        BatchRun run = new BatchRun(recording(request -> {}), executor, 2);
+        CompletableFuture<Void> dependency = new CompletableFuture<>();
+        CompletableFuture<BatchResponse> parked = run.add(request("/parked"), dependency, recording(request -> {}));
+        run.add(request("/free"));
+
+        assertResponse(200, "/free", run.take(1));
+        assertFalse(parked.isDone());
+
+        dependency.complete(null);
+        run.close();
+        assertResponse(200, "/parked", run.take(0));
+    }
+
+    @Test
+    void sequentialRequestsWaitForParkedOnes() throws Exception {
+        BatchRun run = new BatchRun(recording(request -> {}), executor, 2);
+        CompletableFuture<Void> dependency = new CompletableFuture<>();
+        run.add(request("/parked"), dependency, recording(request -> {}));
+        CompletableFuture<BatchResponse> after = run.add(sequential("/s"));
+
+        Thread.sleep(50);
+        assertFalse(after.isDone());
+        assertTrue(events.isEmpty());
+
+        dependency.complete(null);
+        run.close();
+        run.awaitAll();
+        assertEquals(List.of("start /parked", "end /parked", "start /s", "end /s"), events);
+    }
+
+    @Test
+    void timeoutGivesA504AndFreesItsSlotOnce() throws Exception {
+        CountDownLatch releaseSlow = new CountDownLatch(1);
+        CountDownLatch slowEnded = new CountDownLatch(1);
+        Function<BatchRequest, BatchResponse> handler = counting(request -> {
+            if(request.getPath().equals("/slow")) {
+                // Ignores the interrupt, so it's still running after it's been given up on
+                awaitUninterruptibly(releaseSlow);
+                slowEnded.countDown();
+            }
+            else if(request.getPath().equals("/short")) {
+                sleep(20);
+            }
+            return ok(request.getPath());
+        });
+        BatchRun run = new BatchRun(handler, executor, 1, TimeUnit.MILLISECONDS.toNanos(50), 0);
+
+        run.add(request("/slow"));
+        run.add(request("/fast"));
+        assertResponse(504, "Sub-request timed out", run.take(0));
+        // Started while the slow one was still running, as its slot was freed
+        assertResponse(200, "/fast", run.take(1));
+
+        releaseSlow.countDown();
+        assertTrue(slowEnded.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+
+        // Finishing late doesn't free its slot a second time
+        maxActive.set(0);
+        for(int i=0; i<4; i++) {
+            run.add(request("/short"));
+        }
+        run.close();
+        for(int i=2; i<6; i++) {
+            assertResponse(200, "/short", run.take(i));
+        }
+        assertEquals(1, maxActive.get());
+    }
+
+    @Test
+    void deadlineOnlyExpiresUnfinishedEntries() throws Exception {
+        AtomicBoolean interrupted = new AtomicBoolean();
+        Function<BatchRequest, BatchResponse> handler = request -> {
+            if(request.getPath().equals("/slow")) {
+                try {
+                    Thread.sleep(10000);
+                }
+                catch (InterruptedException e) {
+                    interrupted.set(true);
+                }
+            }
+            return ok(request.getPath());
+        };
+        BatchRun run = new BatchRun(handler, executor, 1, 0, TimeUnit.MILLISECONDS.toNanos(100));
+
+        run.add(request("/fast"));
+        assertResponse(200, "/fast", run.take(0));
+        run.add(request("/slow"));
+        run.add(request("/never"));
+
+        assertResponse(504, "Batch deadline exceeded", run.take(1));
+        assertResponse(504, "Batch deadline exceeded", run.take(2));
+        // Entries added after the deadline are expired straight away
+        run.add(request("/late"));
+        run.close();
+        assertResponse(504, "Batch deadline exceeded", run.take(3));
+        assertEquals(null, run.take(4));
+
+        Thread.sleep(50);
+        assertTrue(interrupted.get());
+    }
+
+    @Test
+    void deadlineIsCancelledOnceDrained() {
+        BatchRun run = new BatchRun(request -> ok(request.getPath()), executor, 2, 0, TimeUnit.HOURS.toNanos(1));
+        run.add(request("/a"));
+        run.add(request("/b"));
+        assertTrue(run.hasDeadlinePending());
+
+        run.close();
+        List<BatchResponse> responses = run.awaitAll();
+        assertEquals(2, responses.size());
+        assertFalse(run.hasDeadlinePending());
+    }
+
+    private Function<BatchRequest, BatchResponse> counting(Function<BatchRequest, BatchResponse> handler) {
+        return request -> {
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            try {
+                return handler.apply(request);
+            }
+            finally {
+                active.decrementAndGet();
+            }
+        };
+    }
+
+    // Records when each request starts and ends around the given work
+    private Function<BatchRequest, BatchResponse> recording(Consumer<BatchRequest> work) {
+        return request -> {
+            events.add("start " + request.getPath());
+            work.accept(request);
+            events.add("end " + request.getPath());
+            return ok(request.getPath());
+        };
+    }
+
+    static BatchRequest sequential(String path) {
+        BatchRequest request = request(path);
+        request.setSequential(true);
+        return request;
+    }
+
+    static BatchRequest request(String path) {
+        BatchRequest request = new BatchRequest();
+        request.setMethod("GET");
+        request.setPath(path);
+        return request;
+    }
+
+    static BatchResponse ok(String body) {
+        BatchResponse response = new BatchResponse();
+        response.status(200);
+        response.body(body);
+        return response;
+    }
+
+    static void assertResponse(int status, String body, BatchResponse response) {
+        assertEquals(status, response.status());
+        assertEquals(body, response.bodyAsString());
+    }
+
+    static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while(true) {
+            try {
+                latch.await();
+                break;
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
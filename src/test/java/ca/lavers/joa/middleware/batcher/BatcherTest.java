@@ -0,0 +1,399 @@
+package ca.lavers.joa.middleware.batcher;
+
+import ca.lavers.joa.core.AbstractRequest;
+import ca.lavers.joa.core.AbstractResponse;
+import ca.lavers.joa.core.Context;
+import ca.lavers.joa.core.Middleware;
+import ca.lavers.joa.core.MiddlewareChain;
+import ca.lavers.joa.core.errors.HttpException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BatcherTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    // Responds with the method and path, and a status and header from the query
+    private static final Middleware ECHO = (ctx, next) -> {
+        Map<String, String> query = (ctx.request().queryParams() != null)
+                ? ctx.request().queryParams()
+                : Collections.emptyMap();
+        ctx.response().body(ctx.request().method() + " " + ctx.request().path());
+        // After the body, which would otherwise turn a 404 into a 200
+        String status = query.get("status");
+        ctx.response().status((status != null) ? Integer.parseInt(status) : 200);
+        String header = query.get("header");
+        if(header != null) {
+            ctx.response().header("X-Test", header);
+        }
+    };
+
+    @Test
+    void entriesHaveTheirStatusAndHeaders() {
+        JsonNode responses = post(new Batcher(), ECHO,
+                "{'requests': [{'method': 'POST', 'path': '/a', 'queryParams': {'status': '201', 'header': 'yes'}}," +
+                "{'method': 'GET', 'path': '/b'}]}");
+
+        assertEquals(201, responses.get(0).get("status").asInt());
+        assertEquals("yes", responses.get(0).get("headers").get("X-Test").asText());
+        assertEquals("POST /a", responses.get(0).get("body").asText());
+        assertEquals(200, responses.get(1).get("status").asInt());
+        assertFalse(responses.get(1).has("headers"));
+        assertEquals("GET /b", responses.get(1).get("body").asText());
+    }
+
+    @Test
+    void incrementalParsingRunsEveryRequest() {
+        JsonNode responses = post(new Batcher().withIncrementalParsing(), ECHO,
+                "{'requests': [{'method': 'GET', 'path': '/a'}, {'method': 'GET', 'path': '/b', 'queryParams': {'status': '404'}}]," +
+                "'ignored': {'x': [1, 2]}}");
+
+        assertEquals(2, responses.size());
+        assertEntry(200, "GET /a", responses.get(0));
+        assertEntry(404, "GET /b", responses.get(1));
+    }
+
+    @Test
+    void malformedTailGetsA400Entry() {
+        for(Batcher batcher : new Batcher[] {new Batcher().withIncrementalParsing(),
+                                             new Batcher().withIncrementalParsing().withStreaming()}) {
+            JsonNode responses = post(batcher, ECHO,
+                    "{'requests': [{'method': 'GET', 'path': '/a'}, {'method': 'GET', 'path': '/b'}, 42]}");
+
+            assertEquals(3, responses.size());
+            assertEntry(200, "GET /a", responses.get(0));
+            assertEntry(200, "GET /b", responses.get(1));
+            assertEquals(400, responses.get(2).get("status").asInt());
+            assertTrue(responses.get(2).get("body").asText().startsWith("Bad batch request"));
+        }
+    }
+
+    @Test
+    void bodyThatIsNotABatchIsRejected() {
+        Captured response = send(new Batcher().withIncrementalParsing(), ECHO, "[1, 2, 3]");
+        assertEquals(400, response.status());
+        assertEquals("Bad batch request", response.bodyAsString());
+    }
+
+    @Test
+    void concurrentResponsesKeepRequestOrder() {
+        Middleware slowFirst = (ctx, next) -> {
+            if(ctx.request().path().equals("/0")) {
+                BatchRunTest.sleep(50);
+            }
+            ECHO.call(ctx, next);
+        };
+        StringBuilder batch = new StringBuilder("{'requests': [");
+        for(int i=0; i<8; i++) {
+            batch.append((i > 0) ? ", " : "").append("{'method': 'GET', 'path': '/").append(i).append("'}");
+        }
+        batch.append("]}");
+
+        JsonNode responses = post(new Batcher().withConcurrency(4), slowFirst, batch.toString());
+        assertEquals(8, responses.size());
+        for(int i=0; i<8; i++) {
+            assertEntry(200, "GET /" + i, responses.get(i));
+        }
+    }
+
+    @Test
+    void streamingWritesEntriesAsTheyFinish() throws Exception {
+        CountDownLatch releaseSecond = new CountDownLatch(1);
+        Middleware handler = (ctx, next) -> {
+            if(ctx.request().path().equals("/b")) {
+                try {
+                    releaseSecond.await(5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            ECHO.call(ctx, next);
+        };
+        Captured response = send(new Batcher().withStreaming(), handler,
+                "{'requests': [{'method': 'GET', 'path': '/a'}, {'method': 'GET', 'path': '/b'}]}");
+
+        // Returned while the second request is still running
+        assertEquals(200, response.status());
+        assertEquals(1, releaseSecond.getCount());
+
+        try(JsonParser json = MAPPER.getFactory().createParser(response.bodyStream())) {
+            assertEquals(JsonToken.START_OBJECT, json.nextToken());
+            assertEquals("responses", json.nextFieldName());
+            assertEquals(JsonToken.START_ARRAY, json.nextToken());
+            json.nextToken();
+            assertEntry(200, "GET /a", MAPPER.readTree(json));
+            // The first entry could be read before the second finished
+            assertEquals(1, releaseSecond.getCount());
+
+            releaseSecond.countDown();
+            json.nextToken();
+            assertEntry(200, "GET /b", MAPPER.readTree(json));
+            assertEquals(JsonToken.END_ARRAY, json.nextToken());
+            assertEquals(JsonToken.END_OBJECT, json.nextToken());
+        }
+    }
+
+    @Test
+    void streamedFailuresAreReportedInTheirEntry() {
+        Middleware handler = (ctx, next) -> {
+            if(ctx.request().path().equals("/teapot")) {
+                throw new HttpException(418, "I'm a teapot");
+            }
+            if(ctx.request().path().equals("/broken")) {
+                throw new IllegalStateException("Broken");
+            }
+            ECHO.call(ctx, next);
+        };
+        JsonNode responses = post(new Batcher().withStreaming(), handler,
+                "{'requests': [{'method': 'GET', 'path': '/teapot'}, {'method': 'GET', 'path': '/broken'}," +
+                "{'method': 'GET', 'path': '/a'}]}");
+
+        assertEntry(418, "I'm a teapot", responses.get(0));
+        assertEntry(500, "Internal Server Error", responses.get(1));
+        assertEntry(200, "GET /a", responses.get(2));
+    }
+
+    @Test
+    void base64Bodies() {
+        // Echoes the request body's bytes back, with one more on the end
+        Middleware binary = (ctx, next) -> {
+            try {
+                byte[] in = ctx.request().body().readAllBytes();
+                byte[] out = Arrays.copyOf(in, in.length + 1);
+                out[in.length] = (byte) 0xff;
+                ctx.response().body(new ByteArrayInputStream(out));
+                ctx.response().status(200);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+        String batch = "{'requests': [{'method': 'POST', 'path': '/a', 'body': 'AAEC', 'bodyEncoding': 'base64'}]}";
+
+        JsonNode entry = post(new Batcher().withResponseBodyEncoding(BodyEncoding.BASE64), binary, batch).get(0);
+        assertEquals("base64", entry.get("bodyEncoding").asText());
+        assertEquals("AAEC/w==", entry.get("body").asText());
+
+        // Streamed, and with the default text encoding
+        entry = post(new Batcher().withResponseBodyEncoding(BodyEncoding.BASE64).withStreaming(), binary, batch).get(0);
+        assertEquals("AAEC/w==", entry.get("body").asText());
+        entry = post(new Batcher(), binary, "{'requests': [{'method': 'POST', 'path': '/a', 'body': 'aGk=', 'bodyEncoding': 'base64'}]}").get(0);
+        assertFalse(entry.has("bodyEncoding"));
+        assertEquals("hi\ufffd", entry.get("body").asText());
+    }
+
+    @Test
+    void duplicateRequestsRunOnce() {
+        String batch = "{'requests': [" +
+                "{'method': 'GET', 'path': '/a', 'queryParams': {'header': 'yes'}}," +
+                "{'method': 'GET', 'path': '/a', 'queryParams': {'header': 'yes'}}," +
+                "{'method': 'GET', 'path': '/a', 'queryParams': {'header': 'no'}}," +
+                "{'method': 'GET', 'path': '/a', 'queryParams': {'header': 'yes'}}]}";
+        for(Batcher batcher : new Batcher[] {new Batcher().withDuplicateCoalescing(),
+                                             new Batcher().withDuplicateCoalescing().withConcurrency(4),
+                                             new Batcher().withDuplicateCoalescing().withStreaming()}) {
+            Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+            JsonNode responses = post(batcher, counting(calls), batch);
+
+            assertEquals(4, responses.size());
+            for(JsonNode entry : responses) {
+                assertEntry(200, "GET /a", entry);
+            }
+            // Each copy has the headers too
+            assertEquals("yes", responses.get(1).get("headers").get("X-Test").asText());
+            assertEquals("no", responses.get(2).get("headers").get("X-Test").asText());
+            assertEquals("yes", responses.get(3).get("headers").get("X-Test").asText());
+            assertEquals(2, calls.get("GET /a").get());
+        }
+    }
+
+    @Test
+    void writesAndSequentialRequestsAreNotShared() {
+        Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+        JsonNode responses = post(new Batcher().withDuplicateCoalescing(), counting(calls),
+                "{'requests': [{'method': 'GET', 'path': '/a'}, {'method': 'POST', 'path': '/a'}," +
+                "{'method': 'POST', 'path': '/a'}, {'method': 'GET', 'path': '/a'}, {'method': 'GET', 'path': '/a'}," +
+                "{'method': 'GET', 'path': '/a', 'sequential': true}]}");
+
+        assertEquals(6, responses.size());
+        // Both writes run, the GET after them isn't given the one from before, and the
+        // sequential one runs itself
+        assertEquals(2, calls.get("POST /a").get());
+        assertEquals(3, calls.get("GET /a").get());
+    }
+
+    @Test
+    void referencesUseEarlierResponses() {
+        Middleware orders = (ctx, next) -> {
+            if(ctx.request().method().equals("POST")) {
+                ctx.response().body("{\"id\": 42, \"ref\": \"a/b&c\"}");
+                ctx.response().status(201);
+            }
+            else {
+                ECHO.call(ctx, next);
+            }
+        };
+        for(Batcher batcher : new Batcher[] {new Batcher(), new Batcher().withConcurrency(4)}) {
+            JsonNode responses = post(batcher, orders,
+                    "{'requests': [{'name': 'order', 'method': 'POST', 'path': '/orders'}," +
+                    "{'method': 'GET', 'path': '/orders/${order:/id}/${order:/ref}'}," +
+                    "{'method': 'GET', 'path': '/${order:/ref}/x', 'queryParams': {'header': '${order:/ref}'}}]}");
+
+            assertEntry(201, "{\"id\": 42, \"ref\": \"a/b&c\"}", responses.get(0));
+            assertEntry(200, "GET /orders/42/a%2Fb%26c", responses.get(1));
+            assertEntry(200, "GET /a%2Fb%26c/x", responses.get(2));
+            // Query values aren't encoded
+            assertEquals("a/b&c", responses.get(2).get("headers").get("X-Test").asText());
+        }
+    }
+
+    @Test
+    void unresolvableReferencesGetA424() {
+        Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+        JsonNode responses = post(new Batcher().withConcurrency(4), counting(calls),
+                "{'requests': [{'name': 'missing', 'method': 'GET', 'path': '/a', 'queryParams': {'status': '404'}}," +
+                "{'name': 'text', 'method': 'GET', 'path': '/b'}," +
+                "{'name': 'dependent', 'method': 'GET', 'path': '/c/${missing:}'}," +
+                "{'method': 'GET', 'path': '/d/${text:/id}'}," +
+                "{'method': 'GET', 'path': '/e/${dependent:}'}]}");
+
+        assertEntry(404, "GET /a", responses.get(0));
+        assertEntry(200, "GET /b", responses.get(1));
+        // A failed request, a body with nothing at the pointer, and a request that was itself never run
+        assertEquals(424, responses.get(2).get("status").asInt());
+        assertEquals(424, responses.get(3).get("status").asInt());
+        assertEquals(424, responses.get(4).get("status").asInt());
+        assertEquals(2, calls.size());
+    }
+
+    @Test
+    void referencesToItselfOrLaterRequestsAreLeftAlone() {
+        JsonNode responses = post(new Batcher().withConcurrency(2), ECHO,
+                "{'requests': [{'name': 'a', 'method': 'GET', 'path': '/a/${a:}/${b:}'}," +
+                "{'name': 'b', 'method': 'GET', 'path': '/b/${a:}'}]}");
+
+        // Only earlier names count, so two requests can't wait on each other
+        assertEntry(200, "GET /a/${a:}/${b:}", responses.get(0));
+        assertEntry(200, "GET /b/GET%20%2Fa%2F%24%7Ba%3A%7D%2F%24%7Bb%3A%7D", responses.get(1));
+    }
+
+    // Counts calls by method and path, then echoes
+    private static Middleware counting(Map<String, AtomicInteger> calls) {
+        return (ctx, next) -> {
+            calls.computeIfAbsent(ctx.request().method() + " " + ctx.request().path(), k -> new AtomicInteger())
+                    .incrementAndGet();
+            ECHO.call(ctx, next);
+        };
+    }
+
+    static void assertEntry(int status, String body, JsonNode entry) {
+        assertEquals(status, entry.get("status").asInt());
+        assertEquals(body, entry.get("body").asText());
+    }
+
+    // Posts a batch, with single quotes standing in for double quotes, and returns
+    // the "responses" array of the batch response
+    static JsonNode post(Batcher batcher, Middleware handler, String batch) {
+        Captured response = send(batcher, handler, batch);
+        assertEquals(200, response.status());
+        try {
+            return MAPPER.readTree(response.bodyAsString()).get("responses");
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static Captured send(Batcher batcher, Middleware handler, String batch) {
+        Captured response = new Captured();
+        new MiddlewareChain(batcher, handler).call(new Context(new BatchPost(batch.replace('\'', '"')), response));
+        return response;
+    }
+
+    static class BatchPost extends AbstractRequest {
+        private final byte[] body;
+
+        BatchPost(String body) {
+            this.body = body.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String path() {
+            return "/batch";
+        }
+
+        @Override
+        public String method() {
+            return "POST";
+        }
+
+        @Override
+        public Map<String, String> queryParams() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public String rawQuery() {
+            return "";
+        }
+
+        @Override
+        public Map<String, String> headers() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public String header(String name) {
+            return null;
+        }
+
+        @Override
+        public String remoteIp() {
+            return "127.0.0.1";
+        }
+
+        @Override
+        public InputStream body() {
+            return new ByteArrayInputStream(body);
+        }
+    }
+
+    static class Captured extends AbstractResponse {
+        InputStream bodyStream() {
+            return body;
+        }
+
+        String bodyAsString() {
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                body.transferTo(out);
+                return new String(out.toByteArray(), StandardCharsets.UTF_8);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
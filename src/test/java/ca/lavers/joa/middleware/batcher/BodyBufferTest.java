@@ -0,0 +1,53 @@
+package ca.lavers.joa.middleware.batcher;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class BodyBufferTest {
+
+    @Test
+    void releasedBuffersAreReusedByOtherThreads() throws Exception {
+        List<BodyBuffer> held = drainPool();
+        BodyBuffer released = BodyBuffer.acquire();
+        released.readFrom(new ByteArrayInputStream(new byte[100]));
+        released.release();
+
+        BodyBuffer reused = CompletableFuture.supplyAsync(BodyBuffer::acquire).get();
+        assertSame(released, reused);
+        assertEquals(0, reused.length());
+        reused.release();
+        held.forEach(BodyBuffer::release);
+    }
+
+    @Test
+    void largeBuffersAreNotKept() throws IOException {
+        List<BodyBuffer> held = drainPool();
+        BodyBuffer large = BodyBuffer.acquire();
+        large.readFrom(new ByteArrayInputStream(new byte[1024 * 1024]));
+        assertEquals(1024 * 1024, large.length());
+        large.release();
+
+        for(BodyBuffer buffer : drainPool()) {
+            assertNotSame(large, buffer);
+        }
+        held.forEach(BodyBuffer::release);
+    }
+
+    // Takes every buffer out of the pool, and more
+    private static List<BodyBuffer> drainPool() {
+        List<BodyBuffer> buffers = new ArrayList<>();
+        for(int i=0; i<100; i++) {
+            buffers.add(BodyBuffer.acquire());
+        }
+        return buffers;
+    }
+}
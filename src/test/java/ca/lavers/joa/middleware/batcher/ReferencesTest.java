@@ -0,0 +1,107 @@
+package ca.lavers.joa.middleware.batcher;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static ca.lavers.joa.middleware.batcher.BatchRunTest.request;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ReferencesTest {
+
+    @Test
+    void findsOnlyGivenNames() {
+        BatchRequest request = request("/orders/${order:/id}/${later:/id}");
+        request.setQueryParams(Map.of("user", "${user:/name}"));
+        request.setBody("${missing}${other:}");
+
+        assertEquals(Set.of("order", "user", "other"),
+                References.namesIn(request, List.of("order", "user", "other", "unused")));
+        assertTrue(References.namesIn(request, List.of()).isEmpty());
+    }
+
+    @Test
+    void substitutesValues() throws Exception {
+        BatchRequest request = request("/orders/${order:/id}/items/${order:/items/0}");
+        request.setQueryParams(Map.of("customer", "${order:/customer}"));
+        request.setBody("{\"order\": ${order:}, \"id\": ${order:/id}}");
+        String order = "{\"id\": 42, \"items\": [\"ab\"], \"customer\": {\"name\": \"x\"}}";
+
+        BatchRequest resolved = References.resolve(request, responses("order", 200, order));
+        assertEquals("/orders/42/items/ab", resolved.getPath());
+        assertEquals("{\"name\":\"x\"}", resolved.getQueryParams().get("customer"));
+        assertEquals("{\"order\": " + order + ", \"id\": 42}", resolved.getBody());
+    }
+
+    @Test
+    void pathSubstitutionsAreEncoded() throws Exception {
+        BatchRequest request = request("/files/${file:/name}");
+        request.setQueryParams(Map.of("name", "${file:/name}"));
+        request.setBody("${file:/name}");
+
+        BatchRequest resolved = References.resolve(request,
+                responses("file", 200, "{\"name\": \"a/b?c&d#e f\"}"));
+        assertEquals("/files/a%2Fb%3Fc%26d%23e%20f", resolved.getPath());
+        // Query values and the body are taken as given; the query is encoded as a whole
+        assertEquals("a/b?c&d#e f", resolved.getQueryParams().get("name"));
+        assertEquals("name=a%2Fb%3Fc%26d%23e%20f", resolved.asSubRequest(null).rawQuery());
+        assertEquals("a/b?c&d#e f", resolved.getBody());
+    }
+
+    @Test
+    void bodySubstitutionsAreJsonEscaped() throws Exception {
+        BatchRequest request = request("/users");
+        request.setBody("{\"name\": \"${user:/name}\", \"tags\": ${user:/tags}, \"raw\": \"${text:}\"}");
+        Map<String, BatchResponse> responses = responses("user", 200,
+                "{\"name\": \"a\\\"b\\\\c\", \"tags\": [\"x\\\"\"]}");
+        responses.putAll(responses("text", 200, "say \"hi\" \\ bye"));
+
+        JsonNode body = new ObjectMapper().readTree(References.resolve(request, responses).getBody());
+        assertEquals("a\"b\\c", body.get("name").asText());
+        assertEquals("x\"", body.get("tags").get(0).asText());
+        assertEquals("say \"hi\" \\ bye", body.get("raw").asText());
+        // Exactly the fields written, none injected by the values
+        assertEquals(3, body.size());
+    }
+
+    @Test
+    void unresolvableReferencesFail() throws Exception {
+        Map<String, BatchResponse> responses = responses("ok", 200, "{\"id\": 1}");
+        responses.putAll(responses("failed", 500, "{\"id\": 1}"));
+        responses.put("threw", null);
+
+        assertThrows(References.UnresolvedReferenceException.class,
+                () -> References.resolve(request("/${failed:/id}"), responses));
+        assertThrows(References.UnresolvedReferenceException.class,
+                () -> References.resolve(request("/${threw:}"), responses));
+        assertThrows(References.UnresolvedReferenceException.class,
+                () -> References.resolve(request("/${ok:/missing}"), responses));
+        assertThrows(References.UnresolvedReferenceException.class,
+                () -> References.resolve(request("/${ok:not-a-pointer}"), responses));
+        assertEquals("/1", References.resolve(request("/${ok:/id}"), responses).getPath());
+    }
+
+    @Test
+    void otherTextIsLeftAlone() throws Exception {
+        BatchRequest request = request("/${unknown:/id}/${ok:/id}/${ok");
+        assertEquals("/${unknown:/id}/1/${ok",
+                References.resolve(request, responses("ok", 200, "{\"id\": 1}")).getPath());
+    }
+
+    private static Map<String, BatchResponse> responses(String name, int status, String body) {
+        BatchResponse response = new BatchResponse();
+        response.body(body);
+        response.status(status);
+        response.bufferBody();
+        Map<String, BatchResponse> responses = new HashMap<>();
+        responses.put(name, response);
+        return responses;
+    }
+}
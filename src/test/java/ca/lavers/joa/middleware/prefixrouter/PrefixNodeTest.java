@@ -0,0 +1,98 @@
+package ca.lavers.joa.middleware.prefixrouter;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PrefixNodeTest {
+
+  // Builds a trie the same way PrefixRouter does
+  private static PrefixNode trie(String... prefixes) {
+    PrefixNode root = new PrefixNode();
+    for(int i=0; i<prefixes.length; i++) {
+      root.add(new Prefix(prefixes[i], null).prefix, i);
+    }
+    return root;
+  }
+
+  private static void assertMatches(PrefixNode root, String... paths) {
+    for(String path : paths) {
+      assertEquals(0, root.find(path, false), path);
+    }
+  }
+
+  private static void assertNoMatch(PrefixNode root, String... paths) {
+    for(String path : paths) {
+      assertEquals(-1, root.find(path, false), path);
+    }
+  }
+
+  @Test
+  void testMatches() {
+    PrefixNode root = trie("/foo");
+    assertMatches(root, "/foo", "/foo/", "/foo/bar", "/foo/bar/baz");
+    assertNoMatch(root, "", "/", "/bar", "/bar/foo", "/foobar", "foo", "//");
+  }
+
+  @Test
+  void testRoot() {
+    assertMatches(trie("/"), "", "/", "/foo", "/foo/bar", "//");
+    assertNoMatch(trie("/"), "foo");
+  }
+
+  @Test
+  void testTrailingSlash() {
+    assertMatches(trie("/foo/"), "/foo", "/foo/", "/foo/bar");
+    assertNoMatch(trie("/foo/"), "/foobar");
+  }
+
+  @Test
+  void testLongPrefix() {
+    PrefixNode root = trie("/foo/bar");
+    assertMatches(root, "/foo/bar", "/foo/bar/", "/foo/bar/baz", "/foo/bar/baz/buz");
+    assertNoMatch(root, "/foo", "/foo/", "/foo/barbaz", "/foo/baz");
+  }
+
+  @Test
+  void testStripLength() {
+    // Leaves the slash after the prefix on the remaining path
+    assertEquals("/bar/baz", "/foo/bar/baz".substring(new Prefix("/foo", null).stripLength()));
+    assertEquals("/bar", "/foo/bar".substring(new Prefix("/foo/", null).stripLength()));
+    assertEquals("/baz", "/foo/bar/baz".substring(new Prefix("/foo/bar", null).stripLength()));
+    assertEquals("/foo", "/foo".substring(new Prefix("/", null).stripLength()));
+  }
+
+  @Test
+  void testManySiblings() {
+    String[] prefixes = new String[100];
+    for(int i=0; i<prefixes.length; i++) {
+      prefixes[i] = "/p" + i;
+    }
+    PrefixNode root = trie(prefixes);
+    for(int i=0; i<prefixes.length; i++) {
+      assertEquals(i, root.find("/p" + i + "/x", false));
+    }
+    assertEquals(-1, root.find("/p100", false));
+  }
+
+  @Test
+  void testFirstAdded() {
+    PrefixNode root = trie("/foo/bar", "/foo", "/baz", "/foo");
+
+    assertEquals(0, root.find("/foo/bar/baz", false));
+    assertEquals(1, root.find("/foo/baz", false));
+    assertEquals(2, root.find("/baz", false));
+    assertEquals(-1, root.find("/qux", false));
+  }
+
+  @Test
+  void testLongest() {
+    PrefixNode root = trie("/", "/foo", "/foo/bar");
+
+    assertEquals(2, root.find("/foo/bar/baz", true));
+    assertEquals(1, root.find("/foo/baz", true));
+    assertEquals(0, root.find("/baz", true));
+    assertEquals(0, root.find("/baz", false));
+    assertEquals(0, root.find("/foo/bar", false));
+  }
+
+}
@@ -1,5 +1,6 @@
 package ca.lavers.joa.middleware.prefixrouter;
 
+import ca.lavers.joa.core.Middleware;
 import ca.lavers.joa.test.MockRequest;
 import ca.lavers.joa.test.TestMiddleware;
 import org.junit.jupiter.api.Test;
@@ -53,6 +54,37 @@ class PrefixRouterTest {
     assertTrue(doRun.ran());
   }
 
+  @Test
+  void testNestedSubPath() {
+    TestMiddleware doRun = new TestMiddleware();
+    PrefixRouter inner = new PrefixRouter();
+    inner.prefix("/bar", doRun, (ctx, next) -> {
+      assertEquals("/baz", ctx.request().path());
+    });
+    PrefixRouter outer = new PrefixRouter();
+    outer.prefix("/foo", inner);
+
+    MockRequest.get("/foo/bar/baz").run(outer);
+
+    assertTrue(doRun.ran());
+  }
+
+  @Test
+  void testNestedExactMatch() {
+    // Whole path stripped; should be seen as the root
+    TestMiddleware doRun = new TestMiddleware();
+    PrefixRouter inner = new PrefixRouter();
+    inner.prefix("/", doRun, (ctx, next) -> {
+      assertEquals("/", ctx.request().path());
+    });
+    PrefixRouter outer = new PrefixRouter();
+    outer.prefix("/foo", inner);
+
+    MockRequest.get("/foo").run(outer);
+
+    assertTrue(doRun.ran());
+  }
+
   @Test
   void testFallthrough() {
     TestMiddleware foo = new TestMiddleware();
@@ -106,6 +138,147 @@ class PrefixRouterTest {
     assertTrue(next.ran());
   }
 
+  @Test
+  void testFallthroughFromAnotherThread() throws InterruptedException {
+    // A handler that hands the request off and calls next on another thread
+    // still falls through
+    Middleware handOff = (ctx, next) -> {
+      Thread thread = new Thread(next::run);
+      thread.start();
+      try {
+        thread.join();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    };
+    TestMiddleware bar = new TestMiddleware().runNext(false);
+    TestMiddleware baz = new TestMiddleware();
+
+    PrefixRouter router = new PrefixRouter().withFallthrough();
+    router.prefix("/foo", handOff);
+    router.prefix("/bar", bar);
+    router.prefix("/baz", baz);
+
+    MockRequest.get("/foo").run(router);
+    assertTrue(bar.ran());
+    assertFalse(baz.ran());
+
+    // Nothing left over for a request on the thread that called next
+    TestMiddleware later = new TestMiddleware().runNext(false);
+    TestMiddleware notReached = new TestMiddleware();
+    PrefixRouter other = new PrefixRouter().withFallthrough();
+    other.prefix("/foo", later);
+    other.prefix("/bar", notReached);
+    Thread thread = new Thread(() -> MockRequest.get("/foo").run(other));
+    thread.start();
+    thread.join();
+    assertTrue(later.ran());
+    assertFalse(notReached.ran());
+  }
+
+  @Test
+  void testFallthroughSubPath() {
+    // Every handler sees the path with the matched prefix removed, even if
+    // its own prefix is a different length
+    TestMiddleware v3 = new TestMiddleware();
+    TestMiddleware v1 = new TestMiddleware().runNext(false);
+
+    PrefixRouter router = new PrefixRouter().withFallthrough();
+    router.prefix("/api/v3", v3, (ctx, next) -> {
+      assertEquals("/users", ctx.request().path());
+      next.run();
+    });
+    router.prefix("/v1", v1, (ctx, next) -> {
+      assertEquals("/users", ctx.request().path());
+    });
+
+    MockRequest.get("/api/v3/users").run(router);
+
+    assertTrue(v3.ran());
+    assertTrue(v1.ran());
+  }
+
+  @Test
+  void testFirstMatchWins() {
+    TestMiddleware api = new TestMiddleware();
+    TestMiddleware v2 = new TestMiddleware();
+
+    PrefixRouter router = new PrefixRouter();
+    router.prefix("/api", api);
+    router.prefix("/api/v2", v2);
+
+    MockRequest.get("/api/v2/users").run(router);
+
+    assertTrue(api.ran());
+    assertFalse(v2.ran());
+  }
+
+  @Test
+  void testLongestMatch() {
+    TestMiddleware api = new TestMiddleware();
+    TestMiddleware v2 = new TestMiddleware();
+
+    PrefixRouter router = new PrefixRouter().withLongestMatch();
+    router.prefix("/api", api);
+    router.prefix("/api/v2", v2, (ctx, next) -> {
+      assertEquals("/users", ctx.request().path());
+    });
+
+    MockRequest.get("/api/v2/users").run(router);
+    MockRequest.get("/api/v1/users").run(router);
+
+    assertTrue(v2.ran());
+    assertTrue(api.ran());
+  }
+
+  @Test
+  void testPartialSegment() {
+    TestMiddleware foo = new TestMiddleware();
+    TestMiddleware next = new TestMiddleware();
+
+    PrefixRouter router = new PrefixRouter();
+    router.prefix("/foo", foo);
+
+    MockRequest.get("/foobar").run(router, next);
+
+    assertFalse(foo.ran());
+    assertTrue(next.ran());
+  }
+
+  @Test
+  void testFallthroughReentrant() {
+    // A handler that routes through the same router again shouldn't confuse
+    // whether the outer handler fell through
+    PrefixRouter router = new PrefixRouter().withFallthrough();
+    TestMiddleware inner = new TestMiddleware().runNext(false);
+    TestMiddleware last = new TestMiddleware();
+    router.prefix("/outer", (ctx, next) -> {
+      MockRequest.get("/inner").run(router);
+      next.run();
+    });
+    router.prefix("/inner", inner);
+    router.prefix("/last", last);
+
+    MockRequest.get("/outer").run(router);
+    assertTrue(inner.ran());
+    assertFalse(last.ran());
+
+    // Now with the nested request falling through, and the outer one not
+    PrefixRouter router2 = new PrefixRouter().withFallthrough();
+    TestMiddleware last2 = new TestMiddleware();
+    router2.prefix("/outer", (ctx, next) -> {
+      MockRequest.get("/inner").run(router2);
+    });
+    router2.prefix("/inner", new TestMiddleware());
+    router2.prefix("/last", last2.runNext(false));
+
+    TestMiddleware after = new TestMiddleware();
+    MockRequest.get("/outer").run(router2, after);
+    assertTrue(last2.ran());
+    assertFalse(after.ran());
+  }
+
   @Test
   void testContextAttributesPreserved() {
     TestMiddleware doRun = new TestMiddleware();
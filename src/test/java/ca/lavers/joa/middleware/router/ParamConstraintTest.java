@@ -0,0 +1,90 @@
+package ca.lavers.joa.middleware.router;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ParamConstraintTest {
+
+  @Test
+  public void testInt() {
+    ParamConstraint c = ParamConstraint.parse("int");
+
+    assertTrue(matches(c, "0"));
+    assertTrue(matches(c, "12345"));
+    assertTrue(matches(c, "-12345"));
+    assertTrue(matches(c, "9223372036854775807"));
+    assertTrue(matches(c, "-9223372036854775808"));
+
+    assertFalse(matches(c, ""));
+    assertFalse(matches(c, "-"));
+    assertFalse(matches(c, "12a"));
+    assertFalse(matches(c, "+1"));
+    assertFalse(matches(c, "9223372036854775808"));
+    assertFalse(matches(c, "-9223372036854775809"));
+    assertFalse(matches(c, "12345678901234567890"));
+  }
+
+  @Test
+  public void testUuid() {
+    ParamConstraint c = ParamConstraint.parse("uuid");
+
+    assertTrue(matches(c, "123e4567-e89b-12d3-a456-426614174000"));
+    assertTrue(matches(c, "123E4567-E89B-12D3-A456-426614174000"));
+
+    assertFalse(matches(c, "123e4567e89b12d3a456426614174000"));
+    assertFalse(matches(c, "123e4567-e89b-12d3-a456-42661417400g"));
+    assertFalse(matches(c, "123e4567-e89b-12d3-a456-4266141740000"));
+  }
+
+  @Test
+  public void testCharClass() {
+    ParamConstraint c = ParamConstraint.parse("[a-z-]+");
+
+    assertTrue(matches(c, "some-slug"));
+    assertTrue(matches(c, "-"));
+
+    assertFalse(matches(c, ""));
+    assertFalse(matches(c, "Some-slug"));
+    assertFalse(matches(c, "slug1"));
+  }
+
+  @Test
+  public void testCharClassQuantifiers() {
+    assertTrue(matches(ParamConstraint.parse("[0-9]*"), ""));
+    assertTrue(matches(ParamConstraint.parse("[0-9]"), "5"));
+    assertFalse(matches(ParamConstraint.parse("[0-9]"), "55"));
+  }
+
+  @Test
+  public void testNegatedCharClass() {
+    ParamConstraint c = ParamConstraint.parse("[^.]+");
+
+    assertTrue(matches(c, "file"));
+    assertTrue(matches(c, "café"));
+    assertFalse(matches(c, "file.txt"));
+  }
+
+  @Test
+  public void testEscapes() {
+    ParamConstraint c = ParamConstraint.parse("[\\]\\-a]+");
+
+    assertTrue(matches(c, "]-a"));
+    assertFalse(matches(c, "b"));
+  }
+
+  @Test
+  public void testInvalid() {
+    assertThrows(IllegalStateException.class, () -> ParamConstraint.parse("float"));
+    assertThrows(IllegalStateException.class, () -> ParamConstraint.parse("[a-z"));
+    assertThrows(IllegalStateException.class, () -> ParamConstraint.parse("[a-z]{3}"));
+    assertThrows(IllegalStateException.class, () -> ParamConstraint.parse("[z-a]+"));
+  }
+
+  // Checks against a region in the middle of a larger string, as the router does
+  private static boolean matches(ParamConstraint c, String value) {
+    String path = "/x/" + value + "/y";
+    return c.matches(path, 3, 3 + value.length());
+  }
+
+}
@@ -0,0 +1,83 @@
+package ca.lavers.joa.middleware.router;
+
+import ca.lavers.joa.test.MockRequest;
+import ca.lavers.joa.test.TestContext;
+import ca.lavers.joa.test.TestMiddleware;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RouteMatchCacheTest {
+
+  @Test
+  void cachedMatch() {
+    Router router = new Router().withMatchCache(100);
+    TestMiddleware doRun = new TestMiddleware();
+    router.get("/foos/:fooName", doRun);
+
+    MockRequest.get("/foos/alice").run(router);
+    TestContext ctx = MockRequest.get("/foos/alice").run(router);
+
+    assertTrue(doRun.ran());
+    assertEquals("alice", Router.getRouteMatch(ctx).getParam("fooName"));
+
+    RouteMatchCache cache = router.getMatchCache();
+    assertEquals(1, cache.misses());
+    assertEquals(1, cache.hits());
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  void cachedNoMatch() {
+    Router router = new Router().withMatchCache(100);
+    router.get("/foo");
+
+    TestMiddleware afterRouter = new TestMiddleware();
+    MockRequest.get("/bar").run(router);
+    MockRequest.get("/bar").run(router, afterRouter);
+
+    assertTrue(afterRouter.ran());
+    assertEquals(1, router.getMatchCache().hits());
+  }
+
+  @Test
+  void methodsCachedSeparately() {
+    Router router = new Router().withMatchCache(100);
+    router.get("/foo");
+
+    assertNotNull(router.match("GET", "/foo"));
+    assertNull(router.match("POST", "/foo"));
+    assertNotNull(router.match("GET", "/foo"));
+    assertNull(router.match("POST", "/foo"));
+
+    assertEquals(2, router.getMatchCache().hits());
+    assertEquals(1, router.getMatchCache().size());
+  }
+
+  @Test
+  void invalidatedByNewRoutes() {
+    Router router = new Router().withMatchCache(100);
+    router.get("/foo");
+
+    assertNull(router.match("GET", "/bar"));
+
+    router.get("/bar");
+
+    assertEquals(0, router.getMatchCache().size());
+    assertNotNull(router.match("GET", "/bar"));
+  }
+
+  @Test
+  void eviction() {
+    RouteMatchCache cache = new RouteMatchCache(1);
+
+    cache.put("GET", "/foo", RouteMatchCache.NO_MATCH);
+    cache.put("GET", "/bar", RouteMatchCache.NO_MATCH);
+
+    assertEquals(1, cache.size());
+    assertEquals(1, cache.evictions());
+    assertNull(cache.get("GET", "/foo"));
+    assertSame(RouteMatchCache.NO_MATCH, cache.get("GET", "/bar"));
+  }
+
+}
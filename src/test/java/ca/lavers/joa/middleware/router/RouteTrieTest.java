@@ -0,0 +1,111 @@
+package ca.lavers.joa.middleware.router;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RouteTrieTest {
+
+  @Test
+  public void testLowestRankWins() {
+    Route first = new Route("/foo/:id", null);
+    Route second = new Route("/foo/bar", null);
+
+    RouteTrie trie = new RouteTrie();
+    trie.add(second, 2);
+    trie.add(first, 1);
+
+    RouteMatch match = trie.find("/foo/bar");
+    assertNotNull(match);
+    assertSame(first, match.route);
+    assertEquals("bar", match.getParam("id"));
+  }
+
+  @Test
+  public void testBacktracking() {
+    // The literal branch is tried and fails deeper down; the param branch
+    // must still be considered
+    Route literal = new Route("/foo/bar/baz", null);
+    Route param = new Route("/foo/:id/qux", null);
+
+    RouteTrie trie = new RouteTrie();
+    trie.add(literal, 1);
+    trie.add(param, 2);
+
+    RouteMatch match = trie.find("/foo/bar/qux");
+    assertNotNull(match);
+    assertSame(param, match.route);
+  }
+
+  @Test
+  public void testPrefix() {
+    Route prefix = new Route("/foo", null, true);
+
+    RouteTrie trie = new RouteTrie();
+    trie.add(prefix, 1);
+
+    assertNotNull(trie.find("/foo"));
+    assertNotNull(trie.find("/foo/"));
+    assertNotNull(trie.find("/foo/bar/baz"));
+    assertNull(trie.find("/foobar"));
+    assertNull(trie.find("/"));
+  }
+
+  @Test
+  public void testRoot() {
+    RouteTrie trie = new RouteTrie();
+    trie.add(new Route("/", null), 1);
+
+    assertNotNull(trie.find("/"));
+    assertNull(trie.find("/foo"));
+    assertNull(trie.find(""));
+  }
+
+  @Test
+  public void testLiteralPath() {
+    RouteTrie trie = trieOf(new Route("/foo/bar/baz", null));
+
+    assertNotNull(trie.find("/foo/bar/baz"));
+    assertNull(trie.find("/foo/bar"));
+    assertNull(trie.find("/foo/bar/baz/qux"));
+  }
+
+  @Test
+  public void testParams() {
+    RouteTrie trie = trieOf(new Route("/foos/:fooId/bars/:barId", null));
+
+    RouteMatch match = trie.find("/foos/foo1/bars/bar37");
+    assertNotNull(match);
+    assertEquals("foo1", match.getParam("fooId"));
+    assertEquals("bar37", match.getParam("barId"));
+    assertNull(match.getParam("bazId"));
+  }
+
+  @Test
+  public void testConstrainedParams() {
+    RouteTrie trie = trieOf(new Route("/orders/:id{int}/:slug{[a-z-]+}", null));
+
+    RouteMatch match = trie.find("/orders/37/some-thing");
+    assertNotNull(match);
+    assertEquals("37", match.getParam("id"));
+    assertEquals("some-thing", match.getParam("slug"));
+
+    assertNull(trie.find("/orders/abc/some-thing"));
+    assertNull(trie.find("/orders/37/Some-Thing"));
+  }
+
+  @Test
+  public void testLiteralsNotRegexes() {
+    RouteTrie trie = trieOf(new Route("/foo.txt", null));
+
+    assertNotNull(trie.find("/foo.txt"));
+    assertNull(trie.find("/fooXtxt"));
+  }
+
+  private static RouteTrie trieOf(Route route) {
+    RouteTrie trie = new RouteTrie();
+    trie.add(route, 1);
+    return trie;
+  }
+
+}
@@ -1,11 +1,18 @@
 package ca.lavers.joa.middleware.router;
 
+import ca.lavers.joa.core.Middleware;
+import ca.lavers.joa.core.util.WrappedRequest;
 import ca.lavers.joa.test.MockRequest;
 import ca.lavers.joa.test.TestContext;
 import ca.lavers.joa.test.TestMiddleware;
 import org.junit.jupiter.api.Test;
 
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 public class RouterTest {
 
@@ -72,6 +79,52 @@ public class RouterTest {
     assertEquals("bob", params.getParam("barName"));
   }
 
+  @Test
+  void numericParams() {
+    Router router = new Router();
+    TestMiddleware doRun = new TestMiddleware();
+    router.get("/orders/:id{int}/lines/:line{int}", doRun);
+
+    TestContext ctx = MockRequest.get("/orders/9223372036854775807/lines/-37").run(router);
+
+    assertTrue(doRun.ran());
+    RouteMatch match = Router.getRouteMatch(ctx);
+    assertEquals(Long.MAX_VALUE, match.getLongParam("id"));
+    assertEquals(-37, match.getIntParam("line"));
+    assertEquals(-37L, match.getLongParam("line"));
+    assertEquals("9223372036854775807", match.getParam("id"));
+
+    assertThrows(NumberFormatException.class, () -> match.getIntParam("id"));
+    assertThrows(IllegalArgumentException.class, () -> match.getLongParam("nothing"));
+  }
+
+  @Test
+  void nonNumericParamsDontMatch() {
+    Router router = new Router();
+    TestMiddleware doRun = new TestMiddleware();
+    router.get("/orders/:id{int}", doRun);
+
+    String[] paths = {
+        "/orders/abc",
+        "/orders/12a",
+        "/orders/-",
+        "/orders/",
+        "/orders/9223372036854775808",
+        "/orders/-9223372036854775809",
+        "/orders/99999999999999999999",
+    };
+    for(String path : paths) {
+      assertNull(router.match("GET", path), path);
+
+      TestMiddleware afterRouter = new TestMiddleware();
+      MockRequest.get(path).run(router, afterRouter);
+      assertTrue(afterRouter.ran(), path);
+    }
+    assertFalse(doRun.ran());
+
+    assertEquals(Long.MIN_VALUE, router.match("GET", "/orders/-9223372036854775808").getLongParam("id"));
+  }
+
   @Test
   public void prefixes() {
     Router router = new Router();
@@ -118,4 +171,388 @@ public class RouterTest {
     assertTrue(doRun.ran());
   }
 
+  @Test
+  void definitionOrder() {
+    // A parameterized route defined before a literal one that also matches
+    // should still win, as routes are considered in the order they were defined
+
+    Router router = new Router();
+    TestMiddleware doRun = new TestMiddleware();
+    TestMiddleware dontRun = new TestMiddleware();
+
+    router.get("/foos/:fooName", doRun);
+    router.get("/foos/alice", dontRun);
+
+    TestContext ctx = MockRequest.get("/foos/alice").run(router);
+
+    assertTrue(doRun.ran());
+    assertFalse(dontRun.ran());
+    assertEquals("alice", Router.getRouteMatch(ctx).getParam("fooName"));
+  }
+
+  @Test
+  void mountsBeforeRoutes() {
+    // Mounts take priority over method routes, even ones defined before them
+
+    Router router = new Router();
+    TestMiddleware doRun = new TestMiddleware();
+    TestMiddleware dontRun = new TestMiddleware();
+
+    router.get("/foo/bar", dontRun);
+    router.mount("/foo", doRun);
+
+    MockRequest.get("/foo/bar").run(router);
+
+    assertTrue(doRun.ran());
+    assertFalse(dontRun.ran());
+  }
+
+  @Test
+  void mountsWithoutMethodRoutes() {
+    // Mounts should match even if no routes exist for the request's method
+
+    Router router = new Router();
+    TestMiddleware doRun = new TestMiddleware();
+    TestMiddleware dontRun = new TestMiddleware();
+
+    router.post("/foo", dontRun);
+    router.mount("/foo", doRun);
+
+    MockRequest.get("/foo/bar").run(router);
+
+    assertTrue(doRun.ran());
+    assertFalse(dontRun.ran());
+  }
+
+  @Test
+  void customMethods() {
+    Router router = new Router();
+    router.addRoute("PROPFIND", "/foo");
+    router.patch("/foo");
+    router.mount("/bar");
+
+    assertNotNull(router.match("PROPFIND", "/foo"));
+    assertNotNull(router.match("PATCH", "/foo"));
+    assertNull(router.match("GET", "/foo"));
+    assertNull(router.match("MKCOL", "/foo"));
+
+    assertNotNull(router.match("PROPFIND", "/bar/baz"));
+    assertNotNull(router.match("MKCOL", "/bar/baz"));
+  }
+
+  @Test
+  void trailingSlash() {
+    Router router = new Router();
+    TestMiddleware literal = new TestMiddleware();
+    TestMiddleware param = new TestMiddleware();
+
+    router.get("/foo", literal);
+    router.get("/bar/:barName", param);
+
+    TestMiddleware afterRouter = new TestMiddleware();
+    MockRequest.get("/foo/").run(router, afterRouter);
+
+    assertFalse(literal.ran());
+    assertTrue(afterRouter.ran());
+
+    TestContext ctx = MockRequest.get("/bar/").run(router);
+
+    assertTrue(param.ran());
+    assertEquals("", Router.getRouteMatch(ctx).getParam("barName"));
+  }
+
+  @Test
+  void nestedMounts() {
+    // Each level of mounting should strip its own prefix, with the stripping
+    // collapsed into a single request over the original path
+
+    Router inner = new Router();
+    TestMiddleware doRun = new TestMiddleware();
+    inner.get("/users/:user", doRun, (ctx, next) -> {
+      assertEquals("/users/alice", ctx.request().path());
+      assertEquals("alice", Router.getRouteMatch(ctx).getParam("user"));
+
+      PrefixStrippingRequest req = (PrefixStrippingRequest) ctx.request();
+      assertEquals("/api/v1/users/alice", req.fullPath());
+      assertEquals(7, req.offset());
+    });
+
+    Router middle = new Router();
+    middle.mount("/v1", inner);
+
+    Router outer = new Router();
+    outer.mount("/api", middle);
+
+    MockRequest.get("/api/v1/users/alice").run(outer);
+
+    assertTrue(doRun.ran());
+  }
+
+  @Test
+  void frozen() {
+    Router router = new Router();
+    router.get("/foo").freeze();
+
+    assertThrows(IllegalStateException.class, () -> router.get("/bar"));
+    assertNotNull(router.match("GET", "/foo"));
+  }
+
+  @Test
+  void staysFrozenWhenRoutesAreReplaced() {
+    Router router = new Router().freeze();
+    router.replaceRoutes(new Router().get("/foo"));
+
+    assertThrows(IllegalStateException.class, () -> router.get("/bar"));
+    assertNotNull(router.match("GET", "/foo"));
+  }
+
+  @Test
+  void noRoutesAddedAfterFreezing() throws InterruptedException {
+    Router router = new Router();
+    AtomicInteger added = new AtomicInteger();
+    Thread adder = new Thread(() -> {
+      try {
+        // Bounded, so that a freeze() that can't get in fails rather than running out of memory
+        while(added.get() < 1_000_000) {
+          router.get("/r" + added.get());
+          added.incrementAndGet();
+        }
+      }
+      catch (IllegalStateException e) {
+        // Frozen
+      }
+    });
+    adder.start();
+    while(added.get() < 100) {
+      Thread.yield();
+    }
+    router.freeze();
+    int seen = 0;
+    while(router.match("GET", "/r" + seen) != null) {
+      seen++;
+    }
+    adder.join();
+    assertTrue(added.get() < 1_000_000);
+
+    // Nothing got in between freeze() returning and the adder finding out
+    assertEquals(seen, added.get());
+    assertNull(router.match("GET", "/r" + seen));
+  }
+
+  @Test
+  void manyRoutesKeepTheirOrder() {
+    Router router = new Router();
+    for(int i=0; i<20000; i++) {
+      router.get("/things" + i);
+    }
+    TestMiddleware first = new TestMiddleware();
+    TestMiddleware second = new TestMiddleware();
+    router.get("/:thing", first);
+    router.get("/things0", second);
+
+    MockRequest.get("/things0").run(router);
+    MockRequest.get("/other").run(router);
+    assertFalse(second.ran());
+    assertTrue(first.ran());
+    assertNotNull(router.match("GET", "/things19999"));
+  }
+
+  @Test
+  void replacedRoutesAreCompiledBeforeBeingSwappedIn() {
+    Router router = new Router().withMatchCache(10);
+    Router staged = new Router().get("/foo").get("/bar/:id");
+    assertFalse(staged.isCompiled());
+
+    router.replaceRoutes(staged);
+    assertTrue(router.isCompiled());
+    assertNotNull(router.match("GET", "/bar/1"));
+  }
+
+  @Test
+  void replaceRoutes() {
+    Router router = new Router();
+    TestMiddleware oldRoute = new TestMiddleware();
+    router.get("/foo", oldRoute).freeze();
+
+    TestMiddleware newRoute = new TestMiddleware();
+    router.replaceRoutes(new Router().get("/bar", newRoute));
+
+    TestMiddleware afterRouter = new TestMiddleware();
+    MockRequest.get("/foo").run(router, afterRouter);
+    MockRequest.get("/bar").run(router);
+
+    assertFalse(oldRoute.ran());
+    assertTrue(afterRouter.ran());
+    assertTrue(newRoute.ran());
+  }
+
+  @Test
+  void methodNotAllowed() {
+    Router router = new Router().withMethodHandling();
+    TestMiddleware route = new TestMiddleware();
+    router.get("/foo", route);
+    router.put("/foo", route);
+    router.addRoute("PURGE", "/foo", route);
+
+    TestMiddleware afterRouter = new TestMiddleware();
+    TestContext ctx = MockRequest.get("/foo").run(as("POST"), router, afterRouter);
+
+    assertFalse(route.ran());
+    assertFalse(afterRouter.ran());
+    assertEquals(405, ctx.response().status());
+    assertEquals("GET, PUT, HEAD, OPTIONS, PURGE", router.allowedMethods("/foo"));
+  }
+
+  @Test
+  void methodHandlingOptions() {
+    Router router = new Router().withMethodHandling();
+    TestMiddleware route = new TestMiddleware();
+    router.post("/foo/:id{int}", route);
+
+    TestMiddleware afterRouter = new TestMiddleware();
+    TestContext ctx = MockRequest.get("/foo/1").run(as("OPTIONS"), router, afterRouter);
+
+    assertFalse(route.ran());
+    assertFalse(afterRouter.ran());
+    assertEquals(204, ctx.response().status());
+    assertEquals("POST, OPTIONS", router.allowedMethods("/foo/1"));
+    assertNull(router.allowedMethods("/foo/bar"));
+  }
+
+  @Test
+  void methodHandlingHead() {
+    Router router = new Router().withMethodHandling();
+    TestMiddleware route = new TestMiddleware();
+    router.get("/foo", route);
+
+    TestMiddleware afterRouter = new TestMiddleware();
+    MockRequest.get("/foo").run(as("HEAD"), router, afterRouter);
+
+    assertTrue(route.ran());
+    assertFalse(afterRouter.ran());
+  }
+
+  @Test
+  void methodHandlingUnknownPath() {
+    Router router = new Router().withMethodHandling();
+    router.get("/foo");
+
+    TestMiddleware afterRouter = new TestMiddleware();
+    MockRequest.get("/bar").run(as("POST"), router, afterRouter);
+
+    assertTrue(afterRouter.ran());
+  }
+
+  @Test
+  void methodHandlingDisabled() {
+    Router router = new Router();
+    router.get("/foo");
+
+    TestMiddleware afterRouter = new TestMiddleware();
+    MockRequest.get("/foo").run(as("POST"), router, afterRouter);
+
+    assertTrue(afterRouter.ran());
+  }
+
+  // Middleware that passes the request on with a different method
+  private static Middleware as(String method) {
+    return (ctx, next) -> next.runWithAlternateContext(ctx.withAlternateRequest(new WrappedRequest(ctx.request()) {
+      @Override
+      public String method() {
+        return method;
+      }
+    }));
+  }
+
+  @Test
+  void replaceRoutesUnderLoad() throws InterruptedException {
+    // Requests routed while the routes are being swapped should always see
+    // a complete set of routes
+
+    Router router = new Router().withMatchCache(10);
+    Router oldRoutes = new Router().get("/old").get("/both");
+    Router newRoutes = new Router().get("/new").get("/both");
+    router.replaceRoutes(oldRoutes);
+
+    AtomicBoolean failed = new AtomicBoolean(false);
+    AtomicBoolean done = new AtomicBoolean(false);
+    Thread[] threads = new Thread[4];
+    for(int i=0; i<threads.length; i++) {
+      threads[i] = new Thread(() -> {
+        while(!done.get()) {
+          if(router.match("GET", "/both") == null) {
+            failed.set(true);
+          }
+        }
+      });
+      threads[i].start();
+    }
+
+    for(int i=0; i<1000; i++) {
+      router.replaceRoutes(i % 2 == 0 ? newRoutes : oldRoutes);
+    }
+    done.set(true);
+    for(Thread thread : threads) {
+      thread.join();
+    }
+
+    assertFalse(failed.get());
+  }
+
+  @Test
+  void noAllocationOnMiss() {
+    Router router = allocationTestRouter();
+
+    int iterations = 100_000;
+    long allocated = allocatedBytes(iterations, () -> router.match("GET", "/users/alice/nothing"));
+
+    // Anything allocated per lookup would be at least 16 bytes each; allow for
+    // a little noise from the JVM itself
+    assertTrue(allocated < iterations, "Route misses allocated " + allocated + " bytes");
+  }
+
+  @Test
+  void compactAllocationOnHit() {
+    Router router = allocationTestRouter();
+
+    int iterations = 100_000;
+    long allocated = allocatedBytes(iterations, () -> router.match("GET", "/users/alice/posts/37"));
+
+    // One RouteMatch plus its array of parameter offsets
+    assertTrue(allocated / iterations <= 80, "Route hits allocated " + (allocated / iterations) + " bytes each");
+
+    RouteMatch match = router.match("GET", "/users/alice/posts/37");
+    assertEquals("alice", match.getParam("user"));
+    assertEquals("37", match.getParam("post"));
+  }
+
+  private static Router allocationTestRouter() {
+    Router router = new Router();
+    for(int i=0; i<100; i++) {
+      router.get("/things" + i + "/:thing");
+    }
+    router.get("/users/:user/posts/:post");
+    router.get("/users/:user/profile");
+    router.mount("/static");
+    return router;
+  }
+
+  // Bytes allocated by this thread while running the task the given number of
+  // times, after running it the same number of times to warm up
+  private static long allocatedBytes(int iterations, Runnable task) {
+    assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    assumeTrue(bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled());
+
+    for(int i=0; i<iterations; i++) {
+      task.run();
+    }
+    long threadId = Thread.currentThread().getId();
+    long before = bean.getThreadAllocatedBytes(threadId);
+    for(int i=0; i<iterations; i++) {
+      task.run();
+    }
+    return bean.getThreadAllocatedBytes(threadId) - before;
+  }
+
 }
@@ -0,0 +1,85 @@
+package ca.lavers.joa.middleware.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TestBucketedWindowCounter {
+
+    @Test
+    void test() {
+        MutableClock clock = new MutableClock();
+        BucketedWindowCounter<String> counter = new BucketedWindowCounter<>(300, 10, clock);
+
+        assertEquals(1, counter.addAndGetCountFor("foo"));
+        assertEquals(1, counter.addAndGetCountFor("bar"));
+        assertEquals(2, counter.addAndGetCountFor("foo"));
+
+        clock.advanceSeconds(200);
+
+        assertEquals(3, counter.addAndGetCountFor("foo"));
+        assertEquals(2, counter.addAndGetCountFor("bar"));
+
+        clock.advanceSeconds(200);
+
+        assertEquals(2, counter.addAndGetCountFor("foo"));
+        assertEquals(3, counter.addAndGetCountFor("foo"));
+        assertEquals(2, counter.addAndGetCountFor("bar"));
+
+        clock.advanceSeconds(500);
+
+        assertEquals(1, counter.addAndGetCountFor("foo"));
+        assertEquals(1, counter.addAndGetCountFor("bar"));
+    }
+
+    @Test
+    void bucketBoundaries() {
+        // Buckets of 30 seconds, starting at a bucket boundary
+        MutableClock clock = new MutableClock(Instant.ofEpochSecond(3000));
+        BucketedWindowCounter<String> counter = new BucketedWindowCounter<>(300, 10, clock);
+
+        assertEquals(1, counter.addAndGetCountFor("foo"));
+
+        // Still counted for the whole window...
+        clock.advanceSeconds(300);
+        assertEquals(2, counter.addAndGetCountFor("foo"));
+
+        // ...and the rest of the bucket it was in, but no longer
+        clock.advanceSeconds(29);
+        assertEquals(3, counter.addAndGetCountFor("foo"));
+        clock.advanceSeconds(1);
+        assertEquals(3, counter.addAndGetCountFor("foo"));
+    }
+
+    @Test
+    void clockGoingBackwards() {
+        MutableClock clock = new MutableClock(Instant.ofEpochSecond(3000));
+        BucketedWindowCounter<String> counter = new BucketedWindowCounter<>(300, 10, clock);
+
+        assertEquals(1, counter.addAndGetCountFor("foo"));
+        clock.rewindSeconds(100);
+        assertEquals(2, counter.addAndGetCountFor("foo"));
+    }
+
+    @Test
+    void dropsExpiredItems() {
+        MutableClock clock = new MutableClock(Instant.ofEpochSecond(3000));
+        BucketedWindowCounter<String> counter = new BucketedWindowCounter<>(300, 10, clock);
+
+        for(int i=0; i<10000; i++) {
+            counter.addAndGetCountFor("old" + i);
+        }
+        assertEquals(10000, counter.size());
+
+        // Once the window has passed, each segment drops its items the next time it's used
+        clock.advanceSeconds(400);
+        for(int i=0; i<1000; i++) {
+            counter.addAndGetCountFor("new" + i);
+        }
+        assertEquals(1000, counter.size());
+        assertEquals(1, counter.addAndGetCountFor("old0"));
+    }
+
+}
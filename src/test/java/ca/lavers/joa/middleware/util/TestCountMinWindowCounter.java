@@ -0,0 +1,78 @@
+package ca.lavers.joa.middleware.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestCountMinWindowCounter {
+
+    @Test
+    void test() {
+        MutableClock clock = new MutableClock();
+        CountMinWindowCounter<String> counter = new CountMinWindowCounter<>(300, 10, 1024, 4, clock);
+
+        assertEquals(1, counter.addAndGetCountFor("foo"));
+        assertEquals(1, counter.addAndGetCountFor("bar"));
+        assertEquals(2, counter.addAndGetCountFor("foo"));
+
+        clock.advanceSeconds(200);
+
+        assertEquals(3, counter.addAndGetCountFor("foo"));
+        assertEquals(2, counter.addAndGetCountFor("bar"));
+
+        clock.advanceSeconds(200);
+
+        assertEquals(2, counter.addAndGetCountFor("foo"));
+        assertEquals(3, counter.addAndGetCountFor("foo"));
+        assertEquals(2, counter.addAndGetCountFor("bar"));
+
+        clock.advanceSeconds(500);
+
+        assertEquals(1, counter.addAndGetCountFor("foo"));
+        assertEquals(1, counter.addAndGetCountFor("bar"));
+    }
+
+    @Test
+    void bucketBoundaries() {
+        MutableClock clock = new MutableClock(Instant.ofEpochSecond(3000));
+        CountMinWindowCounter<String> counter = new CountMinWindowCounter<>(300, 10, 1024, 4, clock);
+
+        assertEquals(1, counter.addAndGetCountFor("foo"));
+        clock.advanceSeconds(300);
+        assertEquals(2, counter.addAndGetCountFor("foo"));
+        clock.advanceSeconds(29);
+        assertEquals(3, counter.addAndGetCountFor("foo"));
+        clock.advanceSeconds(1);
+        assertEquals(3, counter.addAndGetCountFor("foo"));
+    }
+
+    @Test
+    void withinErrorBounds() {
+        MutableClock clock = new MutableClock();
+        // As sized by withErrorBounds(300, 10, 0.001, 0.001)
+        CountMinWindowCounter<String> counter = new CountMinWindowCounter<>(300, 10, 2719, 7, clock);
+
+        Random random = new Random(1);
+        Map<String, Integer> exact = new HashMap<>();
+        int events = 50000;
+        int tooHigh = 0;
+        for(int i=0; i<events; i++) {
+            // A few heavy hitters among many one-off clients
+            String ip = (i % 10 == 0) ? "10.0.0." + random.nextInt(5) : "10.1." + random.nextInt(256) + "." + random.nextInt(256);
+            int actual = exact.merge(ip, 1, Integer::sum);
+            int estimate = counter.addAndGetCountFor(ip);
+            assertTrue(estimate >= actual);
+            if(estimate - actual > 0.001 * events) {
+                tooHigh++;
+            }
+        }
+        assertEquals(0, tooHigh);
+    }
+
+}
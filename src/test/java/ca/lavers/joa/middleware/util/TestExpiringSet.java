@@ -2,6 +2,14 @@ package ca.lavers.joa.middleware.util;
 
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -31,4 +39,59 @@ public class TestExpiringSet {
         assertFalse(set.contains("bar"));
     }
 
+    @Test
+    void reclaimsExpiredItems() {
+        MutableClock clock = new MutableClock();
+        ExpiringSet<String> set = new ExpiringSet<>(300, clock);
+
+        set.add("foo");
+        set.add("bar");
+        clock.advanceSeconds(200);
+        set.add("bar");
+        assertEquals(2, set.size());
+
+        clock.advanceSeconds(200);
+        assertFalse(set.contains("baz"));
+        assertEquals(1, set.size());
+        assertTrue(set.contains("bar"));
+
+        clock.advanceSeconds(400);
+        assertFalse(set.contains("bar"));
+        assertEquals(0, set.size());
+
+        // Can be added again after being reclaimed
+        set.add("foo");
+        assertTrue(set.contains("foo"));
+    }
+
+    @Test
+    void snapshot() throws IOException {
+        MutableClock clock = new MutableClock();
+        ExpiringSet<String> set = new ExpiringSet<>(300, clock);
+        set.add("foo");
+        clock.advanceSeconds(200);
+        set.add("bar");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        set.writeSnapshot(new DataOutputStream(bytes), Function.identity());
+
+        // Restored 50 seconds later; foo is still there for another 50 seconds, bar for 250
+        clock.advanceSeconds(50);
+        ExpiringSet<String> restored = new ExpiringSet<>(300, clock);
+        restored.readSnapshot(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), Function.identity());
+        assertTrue(restored.contains("foo"));
+        assertTrue(restored.contains("bar"));
+
+        clock.advanceSeconds(100);
+        assertFalse(restored.contains("foo"));
+        assertTrue(restored.contains("bar"));
+
+        // Anything expired while down isn't loaded at all
+        clock.advanceSeconds(100);
+        ExpiringSet<String> late = new ExpiringSet<>(300, clock);
+        late.readSnapshot(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), Function.identity());
+        assertEquals(1, late.size());
+        assertTrue(late.contains("bar"));
+    }
+
 }
@@ -0,0 +1,25 @@
+package ca.lavers.joa.middleware.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TestHttpMethods {
+
+    @Test
+    void test() {
+        assertEquals(HttpMethods.GET, HttpMethods.slot("GET"));
+        assertEquals(HttpMethods.OPTIONS, HttpMethods.slot("OPTIONS"));
+
+        // Not the interned constant
+        assertEquals(HttpMethods.PATCH, HttpMethods.slot(new String("PATCH")));
+
+        assertEquals(HttpMethods.OTHER, HttpMethods.slot("PROPFIND"));
+        assertEquals(HttpMethods.OTHER, HttpMethods.slot("get"));
+
+        for(int i=0; i<HttpMethods.COUNT; i++) {
+            assertEquals(i, HttpMethods.slot(HttpMethods.name(i)));
+        }
+    }
+
+}
@@ -0,0 +1,57 @@
+package ca.lavers.joa.middleware.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestIpAddress {
+
+    private static long[] parse(String s) {
+        long[] out = new long[2];
+        assertTrue(IpAddress.parse(s, out), s);
+        return out;
+    }
+
+    @Test
+    void ipv4() {
+        assertArrayEquals(new long[] {0, 0xffffc0a80001L}, parse("192.168.0.1"));
+        assertArrayEquals(new long[] {0, 0xffff00000000L}, parse("0.0.0.0"));
+        assertArrayEquals(new long[] {0, 0xffffffffffffL}, parse("255.255.255.255"));
+        long[] address = parse("10.1.2.3");
+        assertTrue(IpAddress.isIpv4(address[0], address[1]));
+    }
+
+    @Test
+    void ipv6() {
+        assertArrayEquals(new long[] {0x20010db800000000L, 1}, parse("2001:db8::1"));
+        assertArrayEquals(new long[] {0x20010db800000000L, 1}, parse("2001:0db8:0000:0000:0000:0000:0000:0001"));
+        assertArrayEquals(new long[] {0, 0}, parse("::"));
+        assertArrayEquals(new long[] {0, 1}, parse("::1"));
+        assertArrayEquals(new long[] {0xfe80000000000000L, 0}, parse("fe80::"));
+        assertArrayEquals(new long[] {0xfe80000000000000L, 0x1234L}, parse("fe80::1234%eth0"));
+        assertArrayEquals(new long[] {0x0001000200030004L, 0x0005000600070008L}, parse("1:2:3:4:5:6:7:8"));
+        assertArrayEquals(new long[] {0x0001000000000000L, 0x0000000000070008L}, parse("1::7:8"));
+        assertArrayEquals(new long[] {0x0001000200030004L, 0x0005000600000000L}, parse("1:2:3:4:5:6::"));
+        assertFalse(IpAddress.isIpv4(0x20010db800000000L, 1));
+    }
+
+    @Test
+    void ipv4InIpv6() {
+        assertArrayEquals(parse("192.168.0.1"), parse("::ffff:192.168.0.1"));
+        assertArrayEquals(parse("192.168.0.1"), parse("::ffff:c0a8:1"));
+        assertArrayEquals(new long[] {0x0064ff9b00000000L, 0xc0a80001L}, parse("64:ff9b::192.168.0.1"));
+    }
+
+    @Test
+    void invalid() {
+        long[] out = new long[2];
+        for(String s : new String[] {null, "", "unknown", "1.2.3", "1.2.3.4.5", "256.1.1.1", "1..2.3", "1.2.3.4.",
+                "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9", "1::2::3", ":1", "1:", "12345::", "1:2:3:4:5:6:7::8",
+                "::1.2.3", "g::1", ":::"}) {
+            assertFalse(IpAddress.parse(s, out), s);
+        }
+    }
+
+}
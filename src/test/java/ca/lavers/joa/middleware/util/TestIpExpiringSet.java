@@ -0,0 +1,65 @@
+package ca.lavers.joa.middleware.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestIpExpiringSet {
+
+    @Test
+    void test() {
+        for(boolean offHeap : new boolean[] {false, true}) {
+            MutableClock clock = new MutableClock();
+            IpExpiringSet set = new IpExpiringSet(300, offHeap, clock);
+
+            set.add("10.0.0.1");
+            assertTrue(set.contains("10.0.0.1"));
+            assertTrue(set.contains("::ffff:10.0.0.1"));
+            assertFalse(set.contains("10.0.0.2"));
+
+            clock.advanceSeconds(200);
+
+            set.add("2001:db8::1");
+            set.add("not an ip");
+            assertTrue(set.contains("10.0.0.1"));
+            assertTrue(set.contains("2001:db8::1"));
+            assertTrue(set.contains("not an ip"));
+
+            clock.advanceSeconds(200);
+
+            assertFalse(set.contains("10.0.0.1"));
+            assertTrue(set.contains("2001:db8::1"));
+            assertTrue(set.contains("not an ip"));
+
+            clock.advanceSeconds(200);
+
+            assertFalse(set.contains("2001:db8::1"));
+            assertFalse(set.contains("not an ip"));
+        }
+    }
+
+    @Test
+    void dropsExpiredWhenFull() {
+        MutableClock clock = new MutableClock();
+        IpExpiringSet set = new IpExpiringSet(300, false, clock);
+
+        for(int i=0; i<10000; i++) {
+            set.add("10.0." + (i / 256) + "." + (i % 256));
+        }
+        assertEquals(10000, set.size());
+        for(int i=0; i<10000; i+=97) {
+            assertTrue(set.contains("10.0." + (i / 256) + "." + (i % 256)));
+        }
+
+        clock.advanceSeconds(400);
+        for(int i=0; i<10000; i++) {
+            set.add("10.1." + (i / 256) + "." + (i % 256));
+        }
+        assertTrue(set.size() < 20000);
+        assertTrue(set.contains("10.1.0.5"));
+        assertFalse(set.contains("10.0.0.5"));
+    }
+
+}
@@ -0,0 +1,85 @@
+package ca.lavers.joa.middleware.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestIpRangeSet {
+
+    @Test
+    void ipv4() {
+        IpRangeSet set = IpRangeSet.of("10.0.0.0/8", "192.168.1.17", "172.16.0.0/12");
+        assertTrue(set.contains("10.0.0.0"));
+        assertTrue(set.contains("10.255.255.255"));
+        assertFalse(set.contains("11.0.0.0"));
+        assertFalse(set.contains("9.255.255.255"));
+        assertTrue(set.contains("192.168.1.17"));
+        assertFalse(set.contains("192.168.1.18"));
+        assertTrue(set.contains("172.31.0.1"));
+        assertFalse(set.contains("172.32.0.1"));
+        // IPv4-mapped form of the same address
+        assertTrue(set.contains("::ffff:10.1.2.3"));
+    }
+
+    @Test
+    void ipv6() {
+        IpRangeSet set = IpRangeSet.of("2001:db8::/32", "fe80::1/128", "2001:db8:ffff:ffff:ffff:ffff:ffff:0/127");
+        assertTrue(set.contains("2001:db8::"));
+        assertTrue(set.contains("2001:db8:ffff:ffff:ffff:ffff:ffff:ffff"));
+        assertFalse(set.contains("2001:db9::"));
+        assertTrue(set.contains("fe80::1"));
+        assertTrue(set.contains("fe80::1%eth0"));
+        assertFalse(set.contains("fe80::2"));
+        assertFalse(set.contains("10.0.0.1"));
+    }
+
+    @Test
+    void hostBitsAreIgnored() {
+        IpRangeSet set = IpRangeSet.of("10.1.2.3/16");
+        assertTrue(set.contains("10.1.0.0"));
+        assertTrue(set.contains("10.1.255.255"));
+        assertFalse(set.contains("10.2.0.0"));
+    }
+
+    @Test
+    void wholeAddressSpace() {
+        IpRangeSet set = IpRangeSet.of("::/0");
+        assertTrue(set.contains("::"));
+        assertTrue(set.contains("ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff"));
+        assertTrue(set.contains("1.2.3.4"));
+
+        IpRangeSet v4 = IpRangeSet.of("0.0.0.0/0");
+        assertTrue(v4.contains("255.255.255.255"));
+        assertFalse(v4.contains("::1"));
+    }
+
+    @Test
+    void mergesOverlappingAndAdjacentRanges() {
+        IpRangeSet set = IpRangeSet.of("10.0.0.0/24", "10.0.1.0/24", "10.0.0.128/25", "10.0.3.0/24",
+                "8000::/2", "c000::/2");
+        assertEquals(3, set.intervals());
+        assertTrue(set.contains("10.0.1.255"));
+        assertFalse(set.contains("10.0.2.0"));
+        assertTrue(set.contains("10.0.3.0"));
+    }
+
+    @Test
+    void notAnAddress() {
+        IpRangeSet set = IpRangeSet.of("0.0.0.0/0");
+        assertFalse(set.contains("example.com"));
+        assertFalse(set.contains(""));
+        assertFalse(IpRangeSet.empty().contains("1.2.3.4"));
+    }
+
+    @Test
+    void invalidRanges() {
+        assertThrows(IllegalArgumentException.class, () -> IpRangeSet.of("10.0.0.0/33"));
+        assertThrows(IllegalArgumentException.class, () -> IpRangeSet.of("2001:db8::/129"));
+        assertThrows(IllegalArgumentException.class, () -> IpRangeSet.of("10.0.0.0/"));
+        assertThrows(IllegalArgumentException.class, () -> IpRangeSet.of("10.0.0/8"));
+        assertThrows(IllegalArgumentException.class, () -> IpRangeSet.of("fe80::1%eth0/64"));
+    }
+}
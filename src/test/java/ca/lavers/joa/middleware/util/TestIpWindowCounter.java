@@ -0,0 +1,75 @@
+package ca.lavers.joa.middleware.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestIpWindowCounter {
+
+    @Test
+    void test() {
+        for(boolean offHeap : new boolean[] {false, true}) {
+            MutableClock clock = new MutableClock();
+            IpWindowCounter counter = new IpWindowCounter(300, 10, offHeap, clock);
+
+            assertEquals(1, counter.addAndGetCountFor("10.0.0.1"));
+            assertEquals(1, counter.addAndGetCountFor("2001:db8::1"));
+            assertEquals(2, counter.addAndGetCountFor("::ffff:10.0.0.1"));
+            assertEquals(1, counter.addAndGetCountFor("unknown"));
+
+            clock.advanceSeconds(200);
+
+            assertEquals(3, counter.addAndGetCountFor("10.0.0.1"));
+            assertEquals(2, counter.addAndGetCountFor("2001:db8::1"));
+            assertEquals(2, counter.addAndGetCountFor("unknown"));
+
+            clock.advanceSeconds(200);
+
+            assertEquals(2, counter.addAndGetCountFor("10.0.0.1"));
+            assertEquals(3, counter.addAndGetCountFor("10.0.0.1"));
+            assertEquals(2, counter.addAndGetCountFor("2001:db8::1"));
+
+            clock.advanceSeconds(500);
+
+            assertEquals(1, counter.addAndGetCountFor("10.0.0.1"));
+            assertEquals(1, counter.addAndGetCountFor("2001:db8::1"));
+            assertEquals(1, counter.addAndGetCountFor("unknown"));
+        }
+    }
+
+    @Test
+    void bucketBoundaries() {
+        MutableClock clock = new MutableClock(Instant.ofEpochSecond(3000));
+        IpWindowCounter counter = new IpWindowCounter(300, 10, false, clock);
+
+        assertEquals(1, counter.addAndGetCountFor("10.0.0.1"));
+        clock.advanceSeconds(300);
+        assertEquals(2, counter.addAndGetCountFor("10.0.0.1"));
+        clock.advanceSeconds(29);
+        assertEquals(3, counter.addAndGetCountFor("10.0.0.1"));
+        clock.advanceSeconds(1);
+        assertEquals(3, counter.addAndGetCountFor("10.0.0.1"));
+    }
+
+    @Test
+    void dropsIdleAddressesWhenFull() {
+        MutableClock clock = new MutableClock();
+        IpWindowCounter counter = new IpWindowCounter(300, 10, false, clock);
+
+        for(int i=0; i<10000; i++) {
+            assertEquals(1, counter.addAndGetCountFor("10.0." + (i / 256) + "." + (i % 256)));
+        }
+        assertEquals(2, counter.addAndGetCountFor("10.0.0.7"));
+
+        clock.advanceSeconds(400);
+        for(int i=0; i<10000; i++) {
+            counter.addAndGetCountFor("10.1." + (i / 256) + "." + (i % 256));
+        }
+        assertTrue(counter.size() < 20000);
+        assertEquals(1, counter.addAndGetCountFor("10.0.0.7"));
+    }
+
+}
@@ -0,0 +1,58 @@
+package ca.lavers.joa.middleware.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestPerfectHash {
+
+    @Test
+    void test() {
+        PerfectHash table = PerfectHash.of("/health", "/status", "/", "");
+
+        assertEquals(0, table.indexOf("/health"));
+        assertEquals(1, table.indexOf("/status"));
+        assertEquals(2, table.indexOf("/"));
+        assertEquals(3, table.indexOf(""));
+        assertEquals(-1, table.indexOf("/healthz"));
+        assertEquals(-1, table.indexOf("/Health"));
+    }
+
+    @Test
+    void testMany() {
+        String[] keys = new String[5000];
+        for(int i=0; i<keys.length; i++) {
+            keys[i] = "/lookup/" + i;
+        }
+        PerfectHash table = PerfectHash.of(keys);
+
+        assertEquals(keys.length, table.size());
+        for(int i=0; i<keys.length; i++) {
+            assertEquals(i, table.indexOf(keys[i]));
+            assertEquals(-1, table.indexOf("/lookup/" + (i + keys.length)));
+        }
+    }
+
+    @Test
+    void testSameHashCode() {
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        PerfectHash table = PerfectHash.of("Aa", "BB", "/foo");
+
+        assertEquals(0, table.indexOf("Aa"));
+        assertEquals(1, table.indexOf("BB"));
+        assertEquals(2, table.indexOf("/foo"));
+        assertEquals(-1, table.indexOf("AaBB"));
+    }
+
+    @Test
+    void testEmpty() {
+        PerfectHash table = PerfectHash.of();
+        assertEquals(-1, table.indexOf("/"));
+    }
+
+    @Test
+    void testDuplicates() {
+        assertThrows(IllegalArgumentException.class, () -> PerfectHash.of("/a", "/b", "/a"));
+    }
+
+}
@@ -2,6 +2,13 @@ package ca.lavers.joa.middleware.util;
 
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.function.Function;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 public class TestSlidingWindowCache {
@@ -32,4 +39,34 @@ public class TestSlidingWindowCache {
         assertEquals(1, cache.addAndGetCountFor("bar"));
     }
 
+    @Test
+    void snapshot() throws IOException {
+        MutableClock clock = new MutableClock();
+        SlidingWindowCache<String> cache = new SlidingWindowCache<>(300, clock);
+        cache.addAndGetCountFor("foo");
+        cache.addAndGetCountFor("bar");
+        clock.advanceSeconds(200);
+        cache.addAndGetCountFor("foo");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        cache.writeSnapshot(new DataOutputStream(bytes), Function.identity());
+
+        clock.advanceSeconds(50);
+        SlidingWindowCache<String> restored = new SlidingWindowCache<>(300, clock);
+        restored.readSnapshot(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), Function.identity());
+        assertEquals(3, restored.addAndGetCountFor("foo"));
+        assertEquals(2, restored.addAndGetCountFor("bar"));
+
+        // The first events leave the window when they would have without the restart
+        clock.advanceSeconds(100);
+        assertEquals(3, restored.addAndGetCountFor("foo"));
+        assertEquals(2, restored.addAndGetCountFor("bar"));
+
+        // Events that left the window while down aren't loaded
+        SlidingWindowCache<String> late = new SlidingWindowCache<>(300, clock);
+        late.readSnapshot(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), Function.identity());
+        assertEquals(2, late.addAndGetCountFor("foo"));
+        assertEquals(1, late.addAndGetCountFor("bar"));
+    }
+
 }
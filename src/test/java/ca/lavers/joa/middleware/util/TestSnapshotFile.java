@@ -0,0 +1,93 @@
+package ca.lavers.joa.middleware.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestSnapshotFile {
+
+    @Test
+    void saveAndLoad(@TempDir Path dir) throws IOException {
+        MutableClock clock = new MutableClock();
+        SlidingWindowCache<String> fails = new SlidingWindowCache<>(300, clock);
+        ExpiringSet<String> naughty = new ExpiringSet<>(300, clock);
+        fails.addAndGetCountFor("10.0.0.1");
+        fails.addAndGetCountFor("10.0.0.1");
+        naughty.add("10.0.0.2");
+
+        SnapshotFile file = new SnapshotFile(dir.resolve("bouncer.snapshot"));
+        assertFalse(file.load(new LinkedHashMap<>()));
+        file.save(sections(fails, naughty));
+
+        SlidingWindowCache<String> loadedFails = new SlidingWindowCache<>(300, clock);
+        ExpiringSet<String> loadedNaughty = new ExpiringSet<>(300, clock);
+        assertTrue(file.load(sections(loadedFails, loadedNaughty)));
+        assertEquals(3, loadedFails.addAndGetCountFor("10.0.0.1"));
+        assertTrue(loadedNaughty.contains("10.0.0.2"));
+        assertFalse(Files.exists(dir.resolve("bouncer.snapshot.tmp")));
+    }
+
+    @Test
+    void skipsSectionsNotAskedFor(@TempDir Path dir) throws IOException {
+        MutableClock clock = new MutableClock();
+        SlidingWindowCache<String> fails = new SlidingWindowCache<>(300, clock);
+        ExpiringSet<String> naughty = new ExpiringSet<>(300, clock);
+        fails.addAndGetCountFor("10.0.0.1");
+        naughty.add("10.0.0.2");
+        SnapshotFile file = new SnapshotFile(dir.resolve("bouncer.snapshot"));
+        file.save(sections(fails, naughty));
+
+        ExpiringSet<String> loadedNaughty = new ExpiringSet<>(300, clock);
+        Map<String, Snapshottable<String>> sections = new LinkedHashMap<>();
+        sections.put("naughty", loadedNaughty);
+        assertTrue(file.load(sections));
+        assertTrue(loadedNaughty.contains("10.0.0.2"));
+    }
+
+    @Test
+    void sectionsLargerThanTheWriteBuffer(@TempDir Path dir) throws IOException {
+        MutableClock clock = new MutableClock();
+        SlidingWindowCache<String> fails = new SlidingWindowCache<>(300, clock);
+        ExpiringSet<String> naughty = new ExpiringSet<>(300, clock);
+        for(int i=0; i<20_000; i++) {
+            fails.addAndGetCountFor("10.0." + (i / 256) + "." + (i % 256));
+            naughty.add("10.1." + (i / 256) + "." + (i % 256));
+        }
+        SnapshotFile file = new SnapshotFile(dir.resolve("bouncer.snapshot"));
+        file.save(sections(fails, naughty));
+        // Shorter than the last one, so anything left over would show up
+        file.save(sections(new SlidingWindowCache<>(300, clock), naughty));
+
+        SlidingWindowCache<String> loadedFails = new SlidingWindowCache<>(300, clock);
+        ExpiringSet<String> loadedNaughty = new ExpiringSet<>(300, clock);
+        assertTrue(file.load(sections(loadedFails, loadedNaughty)));
+        assertEquals(1, loadedFails.addAndGetCountFor("10.0.0.0"));
+        for(int i=0; i<20_000; i++) {
+            assertTrue(loadedNaughty.contains("10.1." + (i / 256) + "." + (i % 256)));
+        }
+    }
+
+    @Test
+    void rejectsOtherFiles(@TempDir Path dir) throws IOException {
+        Path path = dir.resolve("bouncer.snapshot");
+        Files.write(path, new byte[] {1, 2, 3});
+        assertThrows(IOException.class, () -> new SnapshotFile(path).load(new LinkedHashMap<>()));
+    }
+
+    private static Map<String, Snapshottable<String>> sections(SlidingWindowCache<String> fails, ExpiringSet<String> naughty) {
+        Map<String, Snapshottable<String>> sections = new LinkedHashMap<>();
+        sections.put("fails", fails);
+        sections.put("naughty", naughty);
+        return sections;
+    }
+}